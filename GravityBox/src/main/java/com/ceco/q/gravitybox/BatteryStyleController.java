@@ -125,11 +125,12 @@ public class BatteryStyleController implements BroadcastMediator.Receiver {
         mContext = null;
     }
 
-    private void initPreferences(XSharedPreferences prefs) {
-        mPrefs = prefs;
+    private void initPreferences(XSharedPreferences xprefs) {
+        mPrefs = xprefs;
+        PrefsSnapshot prefs = PrefsSnapshot.of(xprefs);
 
-        mBatteryStyle = Integer.valueOf(prefs.getString(
-                GravityBoxSettings.PREF_KEY_BATTERY_STYLE, "1"));
+        mBatteryStyle = prefs.getIntFromString(
+                GravityBoxSettings.PREF_KEY_BATTERY_STYLE, 1);
         if (mBatteryStyle == 4) mBatteryStyle = 1;
 
         mBatteryStyleHeaderEnabled = prefs.getBoolean(
@@ -14,7 +14,6 @@
  */
 package com.ceco.q.gravitybox;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -27,16 +26,16 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicBlur;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class BitmapUtils {
 
+    // predominant color is searched within at most this many sampled pixels
+    private static final int PREDOMINANT_COLOR_MAX_SAMPLES = 256 * 256;
+    // colors are quantized to 5 bits per channel
+    private static final int[] sColorHistogram = new int[1 << 15];
+
     public static Bitmap drawableToBitmap (Drawable drawable) {
         if (drawable == null) return null;
 
@@ -62,52 +61,63 @@ public class BitmapUtils {
     }
 
     public static Bitmap blurBitmap(Context context, Bitmap bmp, float radius) {
-        Bitmap out = Bitmap.createBitmap(bmp);
-        RenderScript rs = RenderScript.create(context);
-        radius = Math.min(Math.max(radius, 0), 25);
-
-        Allocation input = Allocation.createFromBitmap(
-                rs, bmp, Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
-        Allocation output = Allocation.createTyped(rs, input.getType());
-
-        ScriptIntrinsicBlur script = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs));
-        script.setInput(input);
-        script.setRadius(radius);
-        script.forEach(output);
-
-        output.copyTo(out);
-
-        rs.destroy();
-        return out;
+        return BlurEngine.getInstance(context).blur(bmp, radius);
     }
 
-    @SuppressLint("UseSparseArrays")
-    public static int getBitmapPredominantColor(Bitmap bmp) {
-        int width = bmp.getWidth();
-        int height = bmp.getHeight();
-        int[] pixels = new int[width * height];
-
-        bmp.getPixels(pixels, 0, width, 0, 0, width, height);
-
-        Map<Integer, Integer> tmpMap = new HashMap<>();
-        for (int pixel : pixels) {
-            Integer counter = tmpMap.get(pixel);
-            if (counter == null) counter = 0;
-            counter++;
-            tmpMap.put(pixel, counter);
+    /**
+     * Returns the most frequent color of bitmap. Pixels are sampled on a grid so that
+     * cost is bounded regardless of bitmap size and colors are counted per 15-bit bucket.
+     * Result is the average of sampled pixels falling into the most frequent bucket.
+     * @return predominant color or Color.TRANSPARENT if there are no opaque pixels
+     */
+    public static synchronized int getBitmapPredominantColor(Bitmap bmp) {
+        final int width = bmp.getWidth();
+        final int height = bmp.getHeight();
+        final int stride = Math.max(1, (int) Math.ceil(
+                Math.sqrt((double) width * height / PREDOMINANT_COLOR_MAX_SAMPLES)));
+        final int[] row = new int[width];
+        final int[] histogram = sColorHistogram;
+        Arrays.fill(histogram, 0);
+
+        int maxBucket = -1;
+        int maxCount = 0;
+        for (int y = 0; y < height; y += stride) {
+            bmp.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x += stride) {
+                final int pixel = row[x];
+                // discard transparent pixels
+                if (Color.alpha(pixel) == 0) continue;
+                final int bucket = quantizeColor(pixel);
+                final int count = ++histogram[bucket];
+                if (count > maxCount) {
+                    maxCount = count;
+                    maxBucket = bucket;
+                }
+            }
+        }
+        if (maxBucket == -1) {
+            return Color.TRANSPARENT;
         }
 
-        Map.Entry<Integer, Integer> maxEntry = null;
-        for (Map.Entry<Integer, Integer> entry : tmpMap.entrySet()) {
-            // discard transparent pixels
-            if (entry.getKey() == Color.TRANSPARENT) continue;
-
-            if (maxEntry == null || entry.getValue() > maxEntry.getValue()) {
-                maxEntry = entry;
+        // average exact colors of the winning bucket
+        long a = 0, r = 0, g = 0, b = 0;
+        for (int y = 0; y < height; y += stride) {
+            bmp.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x += stride) {
+                final int pixel = row[x];
+                if (Color.alpha(pixel) == 0 || quantizeColor(pixel) != maxBucket) continue;
+                a += Color.alpha(pixel);
+                r += Color.red(pixel);
+                g += Color.green(pixel);
+                b += Color.blue(pixel);
             }
         }
+        return Color.argb((int) (a / maxCount), (int) (r / maxCount),
+                (int) (g / maxCount), (int) (b / maxCount));
+    }
 
-        return maxEntry.getKey();
+    private static int quantizeColor(int color) {
+        return ((color >> 9) & 0x7C00) | ((color >> 6) & 0x03E0) | ((color >> 3) & 0x001F);
     }
 
     public static Bitmap getCircleBitmap(Bitmap bitmap) {
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RSRuntimeException;
+import android.renderscript.RenderScript;
+import android.renderscript.ScriptIntrinsicBlur;
+import android.renderscript.Type;
+
+/**
+ * Long-lived blur engine keeping RenderScript context, blur script and
+ * allocations for recently used bitmap dimensions across calls.
+ * Falls back to StackBlur when RenderScript is not usable.
+ * Calls are serialized so engine can be shared by any thread.
+ */
+public class BlurEngine implements ComponentCallbacks2 {
+    private static final String TAG = "GB:BlurEngine";
+
+    public static final float MAX_RADIUS = 25;
+
+    // radius above which bitmap gets blurred at reduced size
+    private static final float DOWNSCALE_MIN_RADIUS = 10;
+    private static final int DOWNSCALE_FACTOR = 2;
+    private static final int ALLOCATION_POOL_SIZE = 2;
+
+    private static final class AllocationPair {
+        final int width;
+        final int height;
+        final Allocation input;
+        final Allocation output;
+
+        AllocationPair(RenderScript rs, int width, int height) {
+            this.width = width;
+            this.height = height;
+            Type type = Type.createXY(rs, Element.U8_4(rs), width, height);
+            this.input = Allocation.createTyped(rs, type);
+            this.output = Allocation.createTyped(rs, type);
+        }
+
+        void destroy() {
+            input.destroy();
+            output.destroy();
+        }
+    }
+
+    private static BlurEngine sInstance;
+
+    public static synchronized BlurEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BlurEngine(context.getApplicationContext() != null ?
+                    context.getApplicationContext() : context);
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private RenderScript mRs;
+    private ScriptIntrinsicBlur mScript;
+    private boolean mRsFailed;
+    // most recently used first
+    private final List<AllocationPair> mAllocations = new ArrayList<>(ALLOCATION_POOL_SIZE);
+
+    private BlurEngine(Context context) {
+        mContext = context;
+        mContext.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Returns new mutable ARGB_8888 bitmap of the same size with blurred content of source bitmap
+     * @param radius - blur radius in range (0, MAX_RADIUS]
+     */
+    public synchronized Bitmap blur(Bitmap src, float radius) {
+        radius = Math.min(Math.max(radius, 0), MAX_RADIUS);
+        if (radius <= 0) {
+            return src.copy(Bitmap.Config.ARGB_8888, true);
+        }
+
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        int scale = 1;
+        if (radius > DOWNSCALE_MIN_RADIUS && width >= DOWNSCALE_FACTOR && height >= DOWNSCALE_FACTOR) {
+            scale = DOWNSCALE_FACTOR;
+            radius /= scale;
+        }
+
+        Bitmap in = scale > 1 ?
+                Bitmap.createScaledBitmap(src, width / scale, height / scale, true) : src;
+        if (in.getConfig() != Bitmap.Config.ARGB_8888) {
+            Bitmap tmp = in.copy(Bitmap.Config.ARGB_8888, false);
+            if (in != src) in.recycle();
+            in = tmp;
+        }
+
+        Bitmap out = Bitmap.createBitmap(in.getWidth(), in.getHeight(), Bitmap.Config.ARGB_8888);
+        if (!blurRenderScript(in, out, radius)) {
+            blurStack(in, out, radius);
+        }
+        if (in != src) {
+            in.recycle();
+        }
+
+        if (scale > 1) {
+            Bitmap tmp = Bitmap.createScaledBitmap(out, width, height, true);
+            out.recycle();
+            out = tmp;
+        }
+        return out;
+    }
+
+    private boolean blurRenderScript(Bitmap in, Bitmap out, float radius) {
+        if (mRsFailed) return false;
+
+        try {
+            if (mRs == null) {
+                mRs = RenderScript.create(mContext);
+                mScript = ScriptIntrinsicBlur.create(mRs, Element.U8_4(mRs));
+            }
+            AllocationPair alloc = obtainAllocations(in.getWidth(), in.getHeight());
+            alloc.input.copyFrom(in);
+            mScript.setInput(alloc.input);
+            mScript.setRadius(radius);
+            mScript.forEach(alloc.output);
+            alloc.output.copyTo(out);
+            return true;
+        } catch (RSRuntimeException e) {
+            GravityBox.log(TAG, "RenderScript blur failed; using stack blur from now on", e);
+            mRsFailed = true;
+            destroyRenderScript();
+            return false;
+        }
+    }
+
+    private AllocationPair obtainAllocations(int width, int height) {
+        for (int i = 0; i < mAllocations.size(); i++) {
+            AllocationPair alloc = mAllocations.get(i);
+            if (alloc.width == width && alloc.height == height) {
+                if (i > 0) {
+                    mAllocations.remove(i);
+                    mAllocations.add(0, alloc);
+                }
+                return alloc;
+            }
+        }
+        if (mAllocations.size() == ALLOCATION_POOL_SIZE) {
+            mAllocations.remove(ALLOCATION_POOL_SIZE - 1).destroy();
+        }
+        AllocationPair alloc = new AllocationPair(mRs, width, height);
+        mAllocations.add(0, alloc);
+        return alloc;
+    }
+
+    private void blurStack(Bitmap in, Bitmap out, float radius) {
+        final int width = in.getWidth();
+        final int height = in.getHeight();
+        // not kept across calls as it is as big as the bitmap itself
+        final int[] pixels = new int[width * height];
+        in.getPixels(pixels, 0, width, 0, 0, width, height);
+        StackBlur.blur(pixels, width, height, Math.round(radius));
+        out.setPixels(pixels, 0, width, 0, 0, width, height);
+    }
+
+    private void releaseBuffers() {
+        for (AllocationPair alloc : mAllocations) {
+            alloc.destroy();
+        }
+        mAllocations.clear();
+    }
+
+    private void destroyRenderScript() {
+        try {
+            releaseBuffers();
+            if (mScript != null) {
+                mScript.destroy();
+            }
+            if (mRs != null) {
+                mRs.destroy();
+            }
+        } catch (RSRuntimeException e) {
+            GravityBox.log(TAG, e);
+        } finally {
+            mScript = null;
+            mRs = null;
+        }
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            destroyRenderScript();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            releaseBuffers();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) { }
+}
@@ -32,8 +32,10 @@ import android.graphics.Color;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.RecordingCanvas;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.RenderNode;
 import android.os.Handler;
 import android.util.TypedValue;
 import android.widget.ImageView;
@@ -53,10 +55,13 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
     private boolean mIsCharging;    // whether or not device is currently charging
     private boolean mIsFastCharging; // whether or not device is currently fast charging
     private int     mLevel;         // current battery level
+    private String  mLevelText;     // cached text representation of mLevel
     private int     mAnimOffset;    // current level of charging animation
     private boolean mIsAnimating;   // stores charge-animation status to reliably remove callbacks
+    private boolean mVisible;       // whether view and all its ancestors are visible
     private boolean mPercentage;    // whether to show percentage
     private BatteryStyleController mController;
+    private final boolean mIsSamsungRom;
 
     private int     mCircleSize;    // draw size of circle. read rather complicated from
                                     // another status bar icon, so it fits the icon size
@@ -71,6 +76,11 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
     private Paint   mPaintSystem;
     private Paint   mPaintRed;
 
+    // pre-recorded display lists; charging animation only changes rotation of mArcNode
+    private final RenderNode mRingNode = new RenderNode("GbCircleBatteryRing");
+    private final RenderNode mArcNode = new RenderNode("GbCircleBatteryArc");
+    private boolean mNodesValid;
+
     // style
     private float mStrokeWidthFactor;
     private DashPathEffect mPathEffect;
@@ -88,12 +98,30 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
         }
     };
 
+    // advances charging animation; frames only update rotation of pre-recorded arc
+    private final Runnable mChargeAnimTick = new Runnable() {
+        public void run() {
+            if (mAnimOffset >= 360) {
+                mAnimOffset = 0;
+            } else {
+                mAnimOffset += mIsFastCharging ? 6 : 3;
+            }
+            invalidate();
+            mHandler.postDelayed(this, mIsFastCharging ? 30 : 50);
+        }
+    };
+
     // keeps track of current battery level and charger-plugged-state
     @Override
     public void onBatteryStatusChanged(BatteryData batteryData) {
-        mLevel = batteryData.level;
+        if (mLevel != batteryData.level) {
+            mLevel = batteryData.level;
+            mLevelText = Integer.toString(mLevel);
+            mNodesValid = false;
+        }
         mIsCharging = batteryData.charging;
         mIsFastCharging = batteryData.fastCharging;
+        updateChargeAnim();
         if (mAttached) {
             invalidate();
         }
@@ -107,6 +135,8 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
 
         mController = controller;
         mHandler = new Handler();
+        mIsSamsungRom = Utils.isSamsungRom();
+        mLevelText = Integer.toString(mLevel);
 
         // initialize and setup all paint variables
         // stroke width is later set in initSizeBasedStuff()
@@ -117,6 +147,8 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
         mPaintFont.setFakeBoldText(true);
         mPaintFont.setTextAlign(Align.CENTER);
         mPaintFont.setColor(Color.WHITE);
+        // Workarround for drawing bug on Samsung Roms
+        if (mIsSamsungRom) mPaintFont.setStyle(Paint.Style.FILL);
 
         mPaintGray = new Paint(Paint.ANTI_ALIAS_FLAG);
         mPaintGray.setStrokeCap(Paint.Cap.BUTT);
@@ -166,6 +198,8 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
                 mPathEffect = new DashPathEffect(new float[]{3,2},0);
                 break;
         }
+        mPaintSystem.setPathEffect(mPathEffect);
+        mPaintRed.setPathEffect(mPathEffect);
         mRectLeft = null;
         if (mAttached) {
             invalidate();
@@ -184,6 +218,7 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
                 SysUiManagers.BatteryInfoManager.registerListener(this);
             }
             mHandler.postDelayed(mInvalidate, 250);
+            updateChargeAnim();
         }
     }
 
@@ -202,9 +237,20 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
                                 // recalculated on next attach
             mCircleSize = 0;    // makes sure, mCircleSize is reread from icons on
                                 // next attach
+            updateChargeAnim();
+            mRingNode.discardDisplayList();
+            mArcNode.discardDisplayList();
+            mNodesValid = false;
         }
     }
 
+    @Override
+    public void onVisibilityAggregated(boolean isVisible) {
+        super.onVisibilityAggregated(isVisible);
+        mVisible = isVisible;
+        updateChargeAnim();
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         if (mCircleSize == 0) {
@@ -219,33 +265,46 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
         initSizeBasedStuff();
     }
 
-    private void drawCircle(Canvas canvas, int level, int animOffset, float textX, RectF drawRect) {
-        final Paint usePaint = level <= 15 ? mPaintRed : mPaintSystem;
-        usePaint.setAntiAlias(true);
-        usePaint.setPathEffect(mPathEffect);
+    private Paint getLevelPaint() {
+        return mLevel <= 15 ? mPaintRed : mPaintSystem;
+    }
 
+    private void drawLevelArc(Canvas canvas, float startAngle) {
         // pad circle percentage to 100% once it reaches 97%
         // for one, the circle looks odd with a too small gap,
         // for another, some phones never reach 100% due to hardware design
-        int padLevel = level;
+        int padLevel = mLevel;
         if (padLevel >= 97) {
             padLevel = 100;
         }
+        canvas.drawArc(mRectLeft, startAngle, 3.6f * padLevel, false, getLevelPaint());
+    }
 
-        // draw thin gray ring first
-        canvas.drawArc(drawRect, 270, 360, false, mPaintGray);
-        // draw colored arc representing charge level
-        canvas.drawArc(drawRect, 270 + animOffset, 3.6f * padLevel, false, usePaint);
-        // if chosen by options, draw percentage text in the middle
-        // always skip percentage when 100, so layout doesnt break
-        if (level < 100 && mPercentage) {
-            mPaintFont.setColor(usePaint.getColor());
-            // Workarround for drawing bug on Samsung Roms
-            if (Utils.isSamsungRom()) mPaintFont.setStyle(Paint.Style.FILL);
-            canvas.drawText(Integer.toString(level), textX, mTextY, mPaintFont);
-            if (Utils.isSamsungRom()) mPaintFont.setStyle(Paint.Style.STROKE);
+    private void recordNodes() {
+        final int w = getWidth();
+        final int h = getHeight();
+
+        // thin gray ring
+        mRingNode.setPosition(0, 0, w, h);
+        RecordingCanvas canvas = mRingNode.beginRecording(w, h);
+        try {
+            canvas.drawArc(mRectLeft, 270, 360, false, mPaintGray);
+        } finally {
+            mRingNode.endRecording();
         }
 
+        // colored arc representing charge level rotated around circle center
+        mArcNode.setPosition(0, 0, w, h);
+        mArcNode.setPivotX(mRectLeft.centerX());
+        mArcNode.setPivotY(mRectLeft.centerY());
+        canvas = mArcNode.beginRecording(w, h);
+        try {
+            drawLevelArc(canvas, 270);
+        } finally {
+            mArcNode.endRecording();
+        }
+
+        mNodesValid = true;
     }
 
     @Override
@@ -254,36 +313,43 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
             initSizeBasedStuff();
         }
 
-        updateChargeAnim();
+        final int animOffset = mIsCharging ? mAnimOffset : 0;
+        if (canvas.isHardwareAccelerated()) {
+            if (!mNodesValid || !mArcNode.hasDisplayList()) {
+                recordNodes();
+            }
+            mArcNode.setRotationZ(animOffset);
+            canvas.drawRenderNode(mRingNode);
+            canvas.drawRenderNode(mArcNode);
+        } else {
+            canvas.drawArc(mRectLeft, 270, 360, false, mPaintGray);
+            drawLevelArc(canvas, 270 + animOffset);
+        }
 
-        drawCircle(canvas, mLevel, (mIsCharging ? mAnimOffset : 0), mTextLeftX, mRectLeft);
+        // if chosen by options, draw percentage text in the middle
+        // always skip percentage when 100, so layout doesnt break
+        if (mLevel < 100 && mPercentage) {
+            mPaintFont.setColor(getLevelPaint().getColor());
+            canvas.drawText(mLevelText, mTextLeftX, mTextY, mPaintFont);
+        }
     }
 
     /***
-     * updates the animation counter
-     * cares for timed callbacks to continue animation cycles
-     * uses mInvalidate for delayed invalidate() callbacks
+     * starts or stops charging animation based on current state
+     * uses mChargeAnimTick for timed animation steps
      */
     private void updateChargeAnim() {
-        if (!mIsCharging || mLevel >= 97) {
-            if (mIsAnimating) {
-                mIsAnimating = false;
-                mAnimOffset = 0;
-                mHandler.removeCallbacks(mInvalidate);
-            }
-            return;
-        }
-
-        mIsAnimating = true;
+        final boolean animate = mAttached && mVisible && mIsCharging && mLevel < 97;
+        if (animate == mIsAnimating) return;
 
-        if (mAnimOffset >= 360) {
-            mAnimOffset = 0;
+        mIsAnimating = animate;
+        mHandler.removeCallbacks(mChargeAnimTick);
+        if (mIsAnimating) {
+            mHandler.postDelayed(mChargeAnimTick, mIsFastCharging ? 30 : 50);
         } else {
-            mAnimOffset += mIsFastCharging ? 6 : 3;
+            mAnimOffset = 0;
+            invalidate();
         }
-
-        mHandler.removeCallbacks(mInvalidate);
-        mHandler.postDelayed(mInvalidate, mIsFastCharging ? 30 : 50);
     }
 
     /***
@@ -307,6 +373,7 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
         int pLeft = getPaddingLeft();
         mRectLeft = new RectF(pLeft + strokeWidth / 2.0f, 0 + strokeWidth / 2.0f, mCircleSize
                 - strokeWidth / 2.0f + pLeft, mCircleSize - strokeWidth / 2.0f);
+        mNodesValid = false;
 
         // calculate Y position for text
         Rect bounds = new Rect();
@@ -326,7 +393,7 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
     private void initSizeMeasureIconHeight() {
         final Resources res = getResources();
         mCircleSize = Math.round(TypedValue.applyDimension(
-                TypedValue.COMPLEX_UNIT_DIP, Utils.isSamsungRom() ? 14 : 16,
+                TypedValue.COMPLEX_UNIT_DIP, mIsSamsungRom ? 14 : 16,
                 res.getDisplayMetrics()));
         mCircleSize = Math.round(mCircleSize / 2f) * 2;
         if (DEBUG) log("mCircleSize = " + mCircleSize + "px");
@@ -335,6 +402,7 @@ public class CmCircleBattery extends ImageView implements IconManagerListener, B
     public void setColor(int color) {
         mPaintSystem.setColor(color);
         mPaintFont.setColor(color);
+        mNodesValid = false;
         invalidate();
     }
 
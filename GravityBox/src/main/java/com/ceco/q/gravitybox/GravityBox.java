@@ -122,6 +122,7 @@ public class GravityBox implements IXposedHookZygoteInit, IXposedHookLoadPackage
                 lpparam.processName.equals("android")) {
             XposedBridge.log("GB:Is AOSP forced: " + Utils.isAospForced());
             FrameworkManagers.initAndroid(lpparam.classLoader);
+            SystemWideResources.registerStatsDump(FrameworkManagers.BroadcastMediator);
             ModVolumeKeySkipTrack.initAndroid(prefs, lpparam.classLoader);
             ModHwKeys.initAndroid(prefs, lpparam.classLoader);
             ModExpandedDesktop.initAndroid(prefs, lpparam.classLoader);
@@ -145,6 +146,8 @@ public class GravityBox implements IXposedHookZygoteInit, IXposedHookLoadPackage
             uncPrefs.reload();
             tunerPrefs.reload();
             SysUiManagers.init();
+            SystemWideResources.registerStatsDump(SysUiManagers.BroadcastMediator);
+            TrafficSamplingScheduler.registerStatsDump(SysUiManagers.BroadcastMediator);
         }
 
         if (lpparam.packageName.equals(SystemPropertyProvider.PACKAGE_NAME)) {
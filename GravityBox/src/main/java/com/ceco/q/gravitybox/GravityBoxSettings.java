@@ -626,6 +626,8 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
     public static final String PREF_KEY_DATA_TRAFFIC_OMNI_SHOW_ICON = "pref_data_traffic_omni_show_icon";
     public static final String PREF_KEY_DATA_TRAFFIC_OMNI_AUTOHIDE = "pref_data_traffic_omni_autohide";
     public static final String PREF_KEY_DATA_TRAFFIC_OMNI_AUTOHIDE_TH = "pref_data_traffic_omni_autohide_threshold";
+    public static final String PREF_KEY_DATA_TRAFFIC_ADAPTIVE_INTERVAL = "pref_data_traffic_adaptive_interval";
+    public static final String PREF_KEY_DATA_TRAFFIC_STATS = "pref_data_traffic_stats";
     public static final String ACTION_PREF_DATA_TRAFFIC_CHANGED = 
             "gravitybox.intent.action.DATA_TRAFFIC_CHANGED";
     public static final String EXTRA_DT_MODE = "dtMode";
@@ -639,6 +641,8 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
     public static final String EXTRA_DT_OMNI_SHOW_ICON = "dtOmniShowIcon";
     public static final String EXTRA_DT_OMNI_AUTOHIDE = "dtOmniAutohide";
     public static final String EXTRA_DT_OMNI_AUTOHIDE_TH = "dtOmniAutohideTh";
+    public static final String EXTRA_DT_ADAPTIVE_INTERVAL = "dtAdaptiveInterval";
+    public static final String EXTRA_DT_STATS = "dtStats";
 
     public static final String PREF_CAT_KEY_APP_LAUNCHER = "pref_cat_app_launcher";
     public static final List<String> PREF_KEY_APP_LAUNCHER_SLOT = new ArrayList<>(Arrays.asList(
@@ -740,6 +744,7 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
     public static final String PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_ENABLE = "pref_statusbar_download_progress_sound_enable";
     public static final String PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_SOUND = "pref_statusbar_download_progress_sound";
     public static final String PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_SCREEN_OFF = "pref_statusbar_download_progress_sound_screen_off";
+    public static final String PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_UPDATE_INTERVAL = "pref_statusbar_download_progress_update_interval";
     public static final String ACTION_PREF_STATUSBAR_DOWNLOAD_PROGRESS_CHANGED = "gravitybox.intent.action.STATUSBAR_DOWNLOAD_PROGRESS_CHANGED";
     public static final String EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_ENABLED = "sbDownloadProgressEnabled";
     public static final String EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_ANIMATED = "sbDownloadProgressAnimated";
@@ -749,11 +754,16 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
     public static final String EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_ENABLE = "sbDownloadProgressSoundEnable";
     public static final String EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_SOUND = "sbDownloadProgressSound";
     public static final String EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_SCREEN_OFF = "sbDownloadProgressSoundScreenOff";
+    public static final String EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_UPDATE_INTERVAL = "sbDownloadProgressUpdateInterval";
 
     public static final String PREF_KEY_QUICKRECORD_QUALITY = "pref_quickrecord_quality";
     public static final String PREF_KEY_QUICKRECORD_AUTOSTOP = "pref_quickrecord_autostop";
+    public static final String PREF_KEY_QUICKRECORD_BITRATE = "pref_quickrecord_bitrate";
+    public static final String PREF_KEY_QUICKRECORD_DIRECT_WRITE = "pref_quickrecord_direct_write";
     public static final String EXTRA_QR_QUALITY = "quickRecordQuality";
     public static final String EXTRA_QR_AUTOSTOP = "quickRecordAutostop";
+    public static final String EXTRA_QR_BITRATE = "quickRecordBitrate";
+    public static final String EXTRA_QR_DIRECT_WRITE = "quickRecordDirectWrite";
 
     public static final String PREF_KEY_HIDE_LAUNCHER_ICON = "pref_hide_launcher_icon";
 
@@ -1306,6 +1316,8 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
         private SeekBarPreference mPrefDataTrafficOmniAutohideTh;
         private CheckBoxPreference mPrefDataTrafficActiveMobileOnly;
         private ListPreference mPrefDataTrafficDisplayMode;
+        private CheckBoxPreference mPrefDataTrafficAdaptiveInterval;
+        private CheckBoxPreference mPrefDataTrafficStats;
         private ListPreference mPrefLinkVolumes;
         private ListPreference mPrefLinkRingerSystemVolumes;
         private PreferenceScreen mPrefCatAppLauncher;
@@ -1342,6 +1354,7 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
         private ListPreference mPrefChargingLed;
         private CheckBoxPreference mPrefProximityWakeIgnoreCall;
         private ListPreference mPrefQrQuality;
+        private ListPreference mPrefQrBitrate;
         private SeekBarPreference mPrefSrAdaptiveDelay;
         private ListPreference mPrefBbarPosition;
         private ListPreference mPrefSbdpMode;
@@ -1536,6 +1549,8 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
             mPrefDataTrafficDisplayMode = (ListPreference) findPreference(PREF_KEY_DATA_TRAFFIC_DISPLAY_MODE);
             mPrefDataTrafficOmniAutohide = (CheckBoxPreference) findPreference(PREF_KEY_DATA_TRAFFIC_OMNI_AUTOHIDE);
             mPrefDataTrafficOmniAutohideTh = (SeekBarPreference) findPreference(PREF_KEY_DATA_TRAFFIC_OMNI_AUTOHIDE_TH);
+            mPrefDataTrafficAdaptiveInterval = (CheckBoxPreference) findPreference(PREF_KEY_DATA_TRAFFIC_ADAPTIVE_INTERVAL);
+            mPrefDataTrafficStats = (CheckBoxPreference) findPreference(PREF_KEY_DATA_TRAFFIC_STATS);
 
             mPrefCatAppLauncher = (PreferenceScreen) findPreference(PREF_CAT_KEY_APP_LAUNCHER);
             mPrefAppLauncherSlot = new AppPickerPreference[PREF_KEY_APP_LAUNCHER_SLOT.size()];
@@ -1607,6 +1622,7 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
             mPrefProximityWakeIgnoreCall = (CheckBoxPreference) findPreference(PREF_KEY_POWER_PROXIMITY_WAKE_IGNORE_CALL); 
 
             mPrefQrQuality = (ListPreference) findPreference(PREF_KEY_QUICKRECORD_QUALITY);
+            mPrefQrBitrate = (ListPreference) findPreference(PREF_KEY_QUICKRECORD_BITRATE);
 
             mPrefSrAdaptiveDelay = (SeekBarPreference) findPreference(PREF_KEY_SMART_RADIO_ADAPTIVE_DELAY);
 
@@ -2332,6 +2348,8 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficDisplayMode);
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficOmniAutohide);
                 mPrefCatDataTraffic.removePreference(mPrefDataTrafficOmniAutohideTh);
+                mPrefCatDataTraffic.removePreference(mPrefDataTrafficAdaptiveInterval);
+                mPrefCatDataTraffic.removePreference(mPrefDataTrafficStats);
                 String mode = mPrefDataTrafficMode.getValue();
                 if (!mode.equals("OFF")) {
                     if (!Utils.isWifiOnly(getActivity())) {
@@ -2341,6 +2359,8 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficPosition);
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficLs);
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficSize);
+                    mPrefCatDataTraffic.addPreference(mPrefDataTrafficAdaptiveInterval);
+                    mPrefCatDataTraffic.addPreference(mPrefDataTrafficStats);
                 }
                 if (mode.equals("SIMPLE")) {
                     mPrefCatDataTraffic.addPreference(mPrefDataTrafficInactivityMode);
@@ -2368,6 +2388,10 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
                 mPrefQrQuality.setSummary(mPrefQrQuality.getEntry());
             }
 
+            if (key == null || key.equals(PREF_KEY_QUICKRECORD_BITRATE)) {
+                mPrefQrBitrate.setSummary(mPrefQrBitrate.getEntry());
+            }
+
             if (key == null || key.equals(PREF_KEY_SMART_RADIO_SCREEN_OFF_DELAY)) {
                 mPrefSrAdaptiveDelay.setEnabled(
                         mPrefs.getBoolean(PREF_KEY_SMART_RADIO_ENABLE, false) &&
@@ -3044,6 +3068,12 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
             } else if (key.equals(PREF_KEY_DATA_TRAFFIC_LOCKSCREEN)) {
                 intent.setAction(ACTION_PREF_DATA_TRAFFIC_CHANGED);
                 intent.putExtra(EXTRA_DT_LOCKSCREEN, prefs.getBoolean(key, true));
+            } else if (key.equals(PREF_KEY_DATA_TRAFFIC_ADAPTIVE_INTERVAL)) {
+                intent.setAction(ACTION_PREF_DATA_TRAFFIC_CHANGED);
+                intent.putExtra(EXTRA_DT_ADAPTIVE_INTERVAL, prefs.getBoolean(key, false));
+            } else if (key.equals(PREF_KEY_DATA_TRAFFIC_STATS)) {
+                intent.setAction(ACTION_PREF_DATA_TRAFFIC_CHANGED);
+                intent.putExtra(EXTRA_DT_STATS, prefs.getBoolean(key, false));
             } else if (key.equals(PREF_KEY_DATA_TRAFFIC_SIZE)) {
                 intent.setAction(ACTION_PREF_DATA_TRAFFIC_CHANGED);
                 intent.putExtra(EXTRA_DT_SIZE, Integer.valueOf(
@@ -3164,6 +3194,9 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
             } else if (key.equals(PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_MARGIN)) {
                 intent.setAction(ACTION_PREF_STATUSBAR_DOWNLOAD_PROGRESS_CHANGED);
                 intent.putExtra(EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_MARGIN, prefs.getInt(key, 0));
+            } else if (key.equals(PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_UPDATE_INTERVAL)) {
+                intent.setAction(ACTION_PREF_STATUSBAR_DOWNLOAD_PROGRESS_CHANGED);
+                intent.putExtra(EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_UPDATE_INTERVAL, prefs.getInt(key, 0));
             } else if (key.equals(PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_ENABLE)) {
                 intent.setAction(ACTION_PREF_STATUSBAR_DOWNLOAD_PROGRESS_CHANGED);
                 intent.putExtra(EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_ENABLE, prefs.getBoolean(key, false));
@@ -3186,6 +3219,12 @@ public class GravityBoxSettings extends GravityBoxActivity implements GravityBox
             } else if (key.equals(PREF_KEY_QUICKRECORD_AUTOSTOP)) {
                 intent.setAction(ACTION_PREF_QUICKSETTINGS_CHANGED);
                 intent.putExtra(EXTRA_QR_AUTOSTOP, prefs.getInt(key, 1));
+            } else if (key.equals(PREF_KEY_QUICKRECORD_BITRATE)) {
+                intent.setAction(ACTION_PREF_QUICKSETTINGS_CHANGED);
+                intent.putExtra(EXTRA_QR_BITRATE, Integer.valueOf(prefs.getString(key, "96000")));
+            } else if (key.equals(PREF_KEY_QUICKRECORD_DIRECT_WRITE)) {
+                intent.setAction(ACTION_PREF_QUICKSETTINGS_CHANGED);
+                intent.putExtra(EXTRA_QR_DIRECT_WRITE, prefs.getBoolean(key, false));
             } else if (key.equals(PREF_KEY_HIDE_LAUNCHER_ICON)) {
                 int mode = prefs.getBoolean(key, false) ?
                         PackageManager.COMPONENT_ENABLED_STATE_DISABLED :
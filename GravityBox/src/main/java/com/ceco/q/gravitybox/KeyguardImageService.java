@@ -18,6 +18,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.Intent;
@@ -35,16 +39,37 @@ public class KeyguardImageService extends Service {
     public static final int MSG_WRITE_OUTPUT = 2;
     public static final int MSG_FINISH_OUTPUT = 3;
     public static final int MSG_GET_NEXT_CHUNK = 4;
+    // image was saved; client should stay bound until it receives this or MSG_ERROR
+    public static final int MSG_OUTPUT_SAVED = 5;
     public static final int MSG_ERROR = -1;
 
     public static final String ACTION_KEYGUARD_IMAGE_UPDATED = "gravitybox.intent.action.KEYGUARD_IMAGE_UPDATED";
+    public static final String KIS_IMAGE_FILE_NAME = "kis_image.webp";
+
+    private static final String LEGACY_KIS_IMAGE_FILE_NAME = "kis_image.png";
+    private static final int KIS_IMAGE_QUALITY = 90;
+
+    /**
+     * Exposes received bytes as input stream or writes them out without copying them
+     */
+    private static final class ImageBuffer extends ByteArrayOutputStream {
+        ImageBuffer() {
+            super(256 * 1024);
+        }
+
+        InputStream asInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
 
     private File mKisImageFile;
     private boolean mWriteInProgress;
-    private ByteArrayOutputStream mOutputStream;
+    private ImageBuffer mOutputStream;
     private SharedPreferences mPrefs;
+    private final ExecutorService mSaveExecutor = Executors.newSingleThreadExecutor();
 
-    final Messenger mMessenger = new Messenger(new ClientHandler());
+    final ClientHandler mHandler = new ClientHandler();
+    final Messenger mMessenger = new Messenger(mHandler);
 
     @SuppressLint("HandlerLeak")
     class ClientHandler extends Handler {
@@ -52,9 +77,13 @@ public class KeyguardImageService extends Service {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_BEGIN_OUTPUT:
-                    if (mWriteInProgress) return;
+                    if (mWriteInProgress) {
+                        // previous image is still being received or saved
+                        replyToClient(msg.replyTo, MSG_ERROR);
+                        return;
+                    }
                     try {
-                        mOutputStream = new ByteArrayOutputStream();
+                        mOutputStream = new ImageBuffer();
                         mWriteInProgress = true;
                         msg.replyTo.send(Message.obtain(null, MSG_GET_NEXT_CHUNK));
                     } catch (Throwable t) {
@@ -78,27 +107,59 @@ public class KeyguardImageService extends Service {
                     }
                     break;
                 case MSG_FINISH_OUTPUT:
+                    if (!mWriteInProgress) return;
+                    final ImageBuffer buffer = mOutputStream;
+                    final Messenger client = msg.replyTo;
+                    mOutputStream = null;
+                    // decoding, blurring and encoding is too heavy for the main thread
                     try {
-                        if (saveImage()) {
-                            Intent intent = new Intent(ACTION_KEYGUARD_IMAGE_UPDATED);
-                            sendBroadcast(intent);
-                        }
-                        mOutputStream.close();
-                    } catch (Throwable t) {
-                        t.printStackTrace();
+                        mSaveExecutor.execute(() -> {
+                            boolean saved = false;
+                            try {
+                                saved = saveImage(buffer);
+                                if (saved) {
+                                    Intent intent = new Intent(ACTION_KEYGUARD_IMAGE_UPDATED);
+                                    sendBroadcast(intent);
+                                }
+                            } catch (Throwable t) {
+                                t.printStackTrace();
+                            }
+                            mHandler.post(() -> mWriteInProgress = false);
+                            replyToClient(client, saved ? MSG_OUTPUT_SAVED : MSG_ERROR);
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // service is being destroyed
+                        mWriteInProgress = false;
+                        replyToClient(client, MSG_ERROR);
                     }
                     break;
             }
         }
     }
 
+    private static void replyToClient(Messenger client, int what) {
+        if (client == null) return;
+        try {
+            client.send(Message.obtain(null, what));
+        } catch (RemoteException ignored) { }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
     @Override
     public void onCreate() {
         super.onCreate();
-        mKisImageFile = new File(Utils.getFilesDir(this) + "/kis_image.png");
+        mKisImageFile = new File(Utils.getFilesDir(this) + "/" + KIS_IMAGE_FILE_NAME);
+        new File(Utils.getFilesDir(this) + "/" + LEGACY_KIS_IMAGE_FILE_NAME).delete();
         mPrefs = SettingsManager.getInstance(this).getMainPrefs();
     }
 
+    @Override
+    public void onDestroy() {
+        // let image being saved finish
+        mSaveExecutor.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mMessenger.getBinder();
@@ -106,22 +167,52 @@ public class KeyguardImageService extends Service {
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @SuppressLint("SetWorldReadable")
-    private boolean saveImage() {
+    private boolean saveImage(ImageBuffer buffer) {
+        File tmpFile = new File(mKisImageFile.getPath() + ".tmp");
         try {
-            Bitmap tmpBmp = BitmapFactory.decodeStream(
-                    new ByteArrayInputStream(mOutputStream.toByteArray()));
-            if (tmpBmp != null) {
-                if (mPrefs.getBoolean(GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_EFFECT, false)) {
-                    tmpBmp = BitmapUtils.blurBitmap(this, tmpBmp, mPrefs.getInt(
-                            GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_INTENSITY, 14));
+            if (mPrefs.getBoolean(GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_EFFECT, false)) {
+                Bitmap tmpBmp = BitmapFactory.decodeStream(buffer.asInputStream());
+                buffer.reset();
+                if (tmpBmp == null) return false;
+                // blurred image holds no detail worth full resolution;
+                // halve it and the radius which is cheaper and keeps the look
+                Bitmap scaledBmp = Bitmap.createScaledBitmap(tmpBmp,
+                        Math.max(1, tmpBmp.getWidth() / 2), Math.max(1, tmpBmp.getHeight() / 2), true);
+                if (scaledBmp != tmpBmp) {
+                    tmpBmp.recycle();
+                    tmpBmp = scaledBmp;
                 }
-                tmpBmp.compress(Bitmap.CompressFormat.PNG, 100, new FileOutputStream(mKisImageFile));
-                mKisImageFile.setReadable(true, false);
+                Bitmap blurredBmp = BitmapUtils.blurBitmap(this, tmpBmp, mPrefs.getInt(
+                        GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_INTENSITY, 14) / 2f);
                 tmpBmp.recycle();
-                return true;
+                try (FileOutputStream os = new FileOutputStream(tmpFile)) {
+                    blurredBmp.compress(Bitmap.CompressFormat.WEBP, KIS_IMAGE_QUALITY, os);
+                }
+                blurredBmp.recycle();
+            } else {
+                // pixels are unchanged so received image is stored as is
+                // instead of being encoded lossy once more
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(buffer.asInputStream(), null, options);
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
+                    buffer.reset();
+                    return false;
+                }
+                try (FileOutputStream os = new FileOutputStream(tmpFile)) {
+                    buffer.writeTo(os);
+                }
+                buffer.reset();
             }
-            return false;
+            // lockscreen must never see partially written file
+            if (!tmpFile.renameTo(mKisImageFile)) {
+                tmpFile.delete();
+                return false;
+            }
+            mKisImageFile.setReadable(true, false);
+            return true;
         } catch (Exception e) {
+            tmpFile.delete();
             e.printStackTrace();
             return false;
         }
@@ -41,10 +41,12 @@ import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.view.Surface;
 import de.robv.android.xposed.XC_MethodHook;
@@ -79,10 +81,6 @@ public class ModDisplay {
     private static int mBatteryLevel;
     private static ChargingLed mChargingLed;
 
-    private static ServiceConnection mKisServiceConn;
-    private static InputStream mKisImageStream;
-    private static Messenger mKisService;
-    private static Messenger mKisClient;
     private static KeyguardManager mKeyguardManager;
     private static boolean mLsBgLastScreenEnabled;
 
@@ -90,6 +88,119 @@ public class ModDisplay {
         XposedBridge.log(TAG + ": " + message);
     }
 
+    /**
+     * Passes one captured screen image to KeyguardImageService chunk by chunk.
+     * Every capture has its own connection, messengers and wake lock
+     * so that overlapping captures cannot unbind or release those of another.
+     */
+    private static final class KisImageTransfer extends Handler implements ServiceConnection {
+        private static final int CHUNK_SIZE = 204800;
+
+        private final InputStream mImageStream;
+        private final WakeLock mWakeLock;
+        private final Messenger mClient;
+        private volatile Messenger mService;
+        private boolean mFinished;
+
+        KisImageTransfer(Looper looper, byte[] image, WakeLock wakeLock) {
+            super(looper);
+            mImageStream = new ByteArrayInputStream(image);
+            mWakeLock = wakeLock;
+            mClient = new Messenger(this);
+        }
+
+        void start() {
+            ComponentName cn = new ComponentName(GravityBox.PACKAGE_NAME, KeyguardImageService.class.getName());
+            Intent intent = new Intent();
+            intent.setComponent(cn);
+            if (!mContext.bindService(intent, this, Context.BIND_AUTO_CREATE)) {
+                GravityBox.log(TAG, "KisImageTransfer: unable to bind KeyguardImageService");
+                finish();
+            }
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName cn, IBinder binder) {
+            try {
+                mService = new Messenger(binder);
+                sendToService(KeyguardImageService.MSG_BEGIN_OUTPUT, null);
+                if (DEBUG_KIS) log("KisImageTransfer: onServiceConnected");
+            } catch (Throwable t) {
+                GravityBox.log(TAG, t);
+                finish();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName cn) {
+            // image stream is partially consumed; don't let binding restart the service
+            if (DEBUG_KIS) log("KisImageTransfer: onServiceDisconnected");
+            finish();
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (DEBUG_KIS) log("KisImageTransfer: got reply: what=" + msg.what);
+            try {
+                if (msg.what == KeyguardImageService.MSG_GET_NEXT_CHUNK) {
+                    byte[] data = new byte[CHUNK_SIZE];
+                    final int read = mImageStream.read(data);
+                    if (read != -1) {
+                        // last chunk is usually partial
+                        if (read < data.length) {
+                            data = Arrays.copyOf(data, read);
+                        }
+                        Bundle bundle = new Bundle();
+                        bundle.putByteArray("data", data);
+                        sendToService(KeyguardImageService.MSG_WRITE_OUTPUT, bundle);
+                        if (DEBUG_KIS) log("KisImageTransfer: MSG_WRITE_OUTPUT sent");
+                    } else {
+                        // stay bound so the service is kept alive until image is saved
+                        sendToService(KeyguardImageService.MSG_FINISH_OUTPUT, null);
+                        if (DEBUG_KIS) log("KisImageTransfer: MSG_FINISH_OUTPUT sent");
+                    }
+                } else if (msg.what == KeyguardImageService.MSG_OUTPUT_SAVED ||
+                        msg.what == KeyguardImageService.MSG_ERROR) {
+                    if (msg.what == KeyguardImageService.MSG_ERROR) {
+                        GravityBox.log(TAG, "KisImageTransfer: MSG_ERROR received");
+                    } else if (DEBUG_KIS) {
+                        log("KisImageTransfer: MSG_OUTPUT_SAVED received");
+                    }
+                    finish();
+                }
+            } catch (Throwable t) {
+                GravityBox.log(TAG, t);
+                finish();
+            }
+        }
+
+        private void sendToService(int what, Bundle data) throws RemoteException {
+            final Messenger service = mService;
+            if (service == null) return;
+            Message msg = Message.obtain(null, what);
+            if (data != null) {
+                msg.setData(data);
+            }
+            msg.replyTo = mClient;
+            service.send(msg);
+        }
+
+        // service connection callbacks and replies arrive on different threads
+        private synchronized void finish() {
+            if (mFinished) return;
+            mFinished = true;
+            mService = null;
+            try {
+                mContext.unbindService(this);
+            } catch (IllegalArgumentException ignored) {
+                // not bound
+            }
+            if (mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+        }
+    }
+
     private static BroadcastMediator.Receiver mBroadcastReceiver = new BroadcastMediator.Receiver() {
         @Override
         public void onBroadcastReceived(Context context, Intent intent) {
@@ -430,85 +541,16 @@ public class ModDisplay {
                                 tmpBmp = Bitmap.createScaledBitmap(bmp, newWidth, newHeight, true);
                             }
 
+                            // near lossless WebP is several times smaller than PNG
+                            // which means fewer chunks to pass through binder
                             final ByteArrayOutputStream os = new ByteArrayOutputStream();
-                            tmpBmp.compress(CompressFormat.PNG, 100, os);
+                            tmpBmp.compress(CompressFormat.WEBP, 95, os);
                             try {
                                os.close();
                             } catch (IOException ignored) { }
                             bmp.recycle();
                             tmpBmp.recycle();
-                            mKisImageStream = new ByteArrayInputStream(os.toByteArray());
-
-                            if (mKisClient == null) {
-                                mKisClient = new Messenger(new Handler(h.getLooper()) {
-                                    @Override
-                                    public void handleMessage(Message msg) {
-                                        if (DEBUG_KIS) log("mKisClient: got reply: what=" + msg.what);
-                                        try {
-                                            if (msg.what == KeyguardImageService.MSG_GET_NEXT_CHUNK) {
-                                                byte[] data = new byte[204800];
-                                                if (mKisImageStream.read(data) != -1) {
-                                                    Bundle bundle = new Bundle();
-                                                    bundle.putByteArray("data", data);
-                                                    Message dataMsg = Message.obtain(null, KeyguardImageService.MSG_WRITE_OUTPUT);
-                                                    dataMsg.setData(bundle);
-                                                    dataMsg.replyTo = mKisClient;
-                                                    mKisService.send(dataMsg);
-                                                    if (DEBUG_KIS) log("mKisClient: MSG_WRITE_OUTPUT sent");
-                                                } else {
-                                                    msg = Message.obtain(null, KeyguardImageService.MSG_FINISH_OUTPUT);
-                                                    mKisService.send(msg);
-                                                    mContext.unbindService(mKisServiceConn);
-                                                    if (wakeLock != null && wakeLock.isHeld()) {
-                                                        wakeLock.release();
-                                                    }
-                                                    mKisService = null;
-                                                    mKisServiceConn = null;
-                                                    if (DEBUG_KIS) log("mKisClient: MSG_FINISH_OUTPUT sent");
-                                                }
-                                            } else if (msg.what == KeyguardImageService.MSG_ERROR) {
-                                                mContext.unbindService(mKisServiceConn);
-                                                if (wakeLock != null && wakeLock.isHeld()) {
-                                                    wakeLock.release();
-                                                }
-                                                mKisService = null;
-                                                mKisServiceConn = null;
-                                                GravityBox.log(TAG, "mKisClient: MSG_ERROR received");
-                                            }
-                                        } catch (Throwable t) {
-                                            GravityBox.log(TAG, t);
-                                        }
-                                    }
-                                });
-                            }
-
-                            mKisServiceConn = new ServiceConnection() {
-                                @Override
-                                public void onServiceConnected(ComponentName cn, IBinder binder) {
-                                    try {
-                                        mKisService = new Messenger(binder);
-                                        Message msg = Message.obtain(null, KeyguardImageService.MSG_BEGIN_OUTPUT);
-                                        msg.replyTo = mKisClient;
-                                        mKisService.send(msg);
-                                        if (DEBUG_KIS) log("mKisServiceConn: onServiceConnected");
-                                    } catch (Throwable t) {
-                                        GravityBox.log(TAG, t);
-                                    }
-                                }
-                                @Override
-                                public void onServiceDisconnected(ComponentName cn) {
-                                    if (wakeLock != null && wakeLock.isHeld()) {
-                                        wakeLock.release();
-                                    }
-                                    mKisService = null;
-                                    mKisServiceConn = null;
-                                    if (DEBUG_KIS) log("mKisServiceConn: onServiceDisconnected");
-                                }
-                            };
-                            ComponentName cn = new ComponentName(GravityBox.PACKAGE_NAME, KeyguardImageService.class.getName());
-                            Intent intent = new Intent();
-                            intent.setComponent(cn);
-                            mContext.bindService(intent, mKisServiceConn, Context.BIND_AUTO_CREATE);
+                            new KisImageTransfer(h.getLooper(), os.toByteArray(), wakeLock).start();
                         }).start();
                     }
                 }
@@ -18,9 +18,11 @@ package com.ceco.q.gravitybox;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.ceco.q.gravitybox.ModStatusBar.StatusBarState;
 import com.ceco.q.gravitybox.ledcontrol.LedSettings;
@@ -109,7 +111,10 @@ public class ModLedControl {
     private static boolean mUncActiveScreenEnabled;
     private static boolean mUncActiveScreenPocketModeEnabled;
     private static boolean mUncActiveScreenIgnoreQh;
-    private static Map<String,LedSettings> mUncAppPrefs = new HashMap<>();
+    // preparsed settings of all packages having any; immutable snapshot replaced on change
+    private static volatile Map<String,LedSettings> mUncAppPrefs = Collections.emptyMap();
+    // shared settings for packages having none
+    private static LedSettings mUncNoSettings;
 
     private static SensorEventListener mProxSensorEventListener = new SensorEventListener() {
         @Override
@@ -162,8 +167,10 @@ public class ModLedControl {
             if (intent.hasExtra(LedSettings.EXTRA_UNC_PACKAGE_NAME) &&
                     intent.hasExtra(LedSettings.EXTRA_UNC_PACKAGE_SETTINGS)) {
                 String pkgName = intent.getStringExtra(LedSettings.EXTRA_UNC_PACKAGE_NAME);
-                mUncAppPrefs.put(pkgName, LedSettings.deserialize(pkgName,
+                Map<String,LedSettings> appPrefs = new HashMap<>(mUncAppPrefs);
+                appPrefs.put(pkgName, LedSettings.deserialize(pkgName,
                         intent.getStringArrayListExtra(LedSettings.EXTRA_UNC_PACKAGE_SETTINGS)));
+                mUncAppPrefs = Collections.unmodifiableMap(appPrefs);
                 if (DEBUG) log("Settings for " + pkgName + " updated");
             }
         } else if (action.equals(QuietHoursActivity.ACTION_QUIET_HOURS_CHANGED)) {
@@ -199,6 +206,7 @@ public class ModLedControl {
         mUncActiveScreenEnabled = mUncPrefs.getBoolean(LedSettings.PREF_KEY_ACTIVE_SCREEN_ENABLED, false);
         mUncActiveScreenPocketModeEnabled = mUncPrefs.getBoolean(LedSettings.PREF_KEY_ACTIVE_SCREEN_POCKET_MODE, true);
         mUncActiveScreenIgnoreQh = mUncPrefs.getBoolean(LedSettings.PREF_KEY_ACTIVE_SCREEN_IGNORE_QUIET_HOURS, false);
+        loadUncAppPrefs();
 
         try {
             final Class<?> nmsClass = XposedHelpers.findClass(CLASS_NOTIFICATION_MANAGER_SERVICE, classLoader);
@@ -262,14 +270,29 @@ public class ModLedControl {
         }
     }
 
-    private static LedSettings resolveLedSettings(String pkgName) {
-        if (mUncAppPrefs.containsKey(pkgName)) {
-            if (DEBUG) log("resolveLedSettings: getting in-memory settings for " + pkgName);
-            return mUncAppPrefs.get(pkgName);
-        } else {
-            if (DEBUG) log("resolveLedSettings: getting in-prefs settings for " + pkgName);
-            return LedSettings.deserialize(mUncPrefs.getStringSet(pkgName, null));
+    @SuppressWarnings("unchecked")
+    private static void loadUncAppPrefs() {
+        mUncNoSettings = LedSettings.deserialize((Set<String>) null);
+        Map<String,LedSettings> appPrefs = new HashMap<>();
+        try {
+            for (Map.Entry<String,?> entry : mUncPrefs.getAll().entrySet()) {
+                // package settings are the only string sets in UNC prefs
+                if (entry.getValue() instanceof Set) {
+                    appPrefs.put(entry.getKey(), LedSettings.deserialize(entry.getKey(),
+                            (Set<String>) entry.getValue()));
+                }
+            }
+        } catch (Throwable t) {
+            GravityBox.log(TAG, "Error loading UNC settings: ", t);
         }
+        mUncAppPrefs = Collections.unmodifiableMap(appPrefs);
+        if (DEBUG) log("loadUncAppPrefs: loaded settings of " + appPrefs.size() + " packages");
+    }
+
+    private static LedSettings resolveLedSettings(String pkgName) {
+        LedSettings ls = mUncAppPrefs.get(pkgName);
+        if (DEBUG) log("resolveLedSettings: " + pkgName + " has settings: " + (ls != null));
+        return (ls != null ? ls : mUncNoSettings);
     }
 
     private static XC_MethodHook createNotificationRecordHook = new XC_MethodHook() {
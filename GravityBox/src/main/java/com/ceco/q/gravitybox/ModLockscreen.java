@@ -14,6 +14,9 @@
  */
 package com.ceco.q.gravitybox;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -39,6 +42,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.DisplayMetrics;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
@@ -75,6 +79,8 @@ public class ModLockscreen {
     private static final boolean DEBUG = false;
     private static final boolean DEBUG_KIS = false;
 
+    private static final String BG_CACHE_PREFIX = "gb_lockscreen_bg_";
+
     private static int MSG_SMART_UNLOCK = 1;
     private static int MSG_DIRECT_UNLOCK = 2;
 
@@ -86,6 +92,7 @@ public class ModLockscreen {
     private static Context mContext;
     private static Context mGbContext;
     private static Bitmap mCustomBg;
+    private static int mCustomBgGeneration;
     private static QuietHours mQuietHours;
     private static DirectUnlock mDirectUnlock = DirectUnlock.OFF;
     private static UnlockPolicy mDirectUnlockPolicy = UnlockPolicy.DEFAULT;
@@ -118,7 +125,7 @@ public class ModLockscreen {
             if (DEBUG) log("Settings reloaded");
         } else if (action.equals(KeyguardImageService.ACTION_KEYGUARD_IMAGE_UPDATED)) {
             if (DEBUG_KIS) log("ACTION_KEYGUARD_IMAGE_UPDATED received");
-            setLastScreenBackground(true);
+            setLastScreenBackground();
         } else if (action.equals(QuietHoursActivity.ACTION_QUIET_HOURS_CHANGED)) {
             mQuietHours = new QuietHours(intent.getExtras());
             if (DEBUG) log("QuietHours settings reloaded");
@@ -786,6 +793,8 @@ public class ModLockscreen {
 
     private static synchronized void prepareCustomBackground(boolean updateMediaMetadata) {
         try {
+            // invalidates result of any image still being processed
+            final int generation = ++mCustomBgGeneration;
             if (mCustomBg != null) {
                 mCustomBg = null;
             }
@@ -794,21 +803,28 @@ public class ModLockscreen {
                   GravityBoxSettings.LOCKSCREEN_BG_DEFAULT);
     
             if (bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_COLOR)) {
+                // blurring solid color has no effect
                 int color = mPrefs.getInt(
                       GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_COLOR, Color.BLACK);
                 mCustomBg = BitmapUtils.drawableToBitmap(new ColorDrawable(color));
             } else if (bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_IMAGE)) {
-                String wallpaperFile = mGbContext.getFilesDir() + "/lockwallpaper";
-                mCustomBg = BitmapFactory.decodeFile(wallpaperFile);
+                final File wallpaperFile = new File(mGbContext.getFilesDir() + "/lockwallpaper");
+                final int blurIntensity = mPrefs.getBoolean(
+                        GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_EFFECT, false) ?
+                        mPrefs.getInt(GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_INTENSITY, 14) : 0;
+                // same for any orientation so rotation does not invalidate cached image
+                final DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
+                final int reqShortSide = Math.min(dm.widthPixels, dm.heightPixels);
+                final int reqLongSide = Math.max(dm.widthPixels, dm.heightPixels);
+                // decoding and blurring happens off the main thread
+                AsyncTask.execute(() -> {
+                    final Bitmap bmp = loadCustomBackgroundImage(
+                            wallpaperFile, blurIntensity, reqShortSide, reqLongSide);
+                    new Handler(Looper.getMainLooper()).post(() ->
+                            onCustomBackgroundLoaded(generation, bmp));
+                });
             } else if (bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_LAST_SCREEN)) {
-                setLastScreenBackground(false);
-            }
-    
-            if (!bgType.equals(GravityBoxSettings.LOCKSCREEN_BG_LAST_SCREEN) &&
-                    mCustomBg != null && mPrefs.getBoolean(
-                    GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_EFFECT, false)) {
-                mCustomBg = BitmapUtils.blurBitmap(mContext, mCustomBg, mPrefs.getInt(
-                          GravityBoxSettings.PREF_KEY_LOCKSCREEN_BACKGROUND_BLUR_INTENSITY, 14));
+                setLastScreenBackground();
             }
 
             if (updateMediaMetadata) {
@@ -821,6 +837,100 @@ public class ModLockscreen {
         }
     }
 
+    private static synchronized void onCustomBackgroundLoaded(int generation, Bitmap bmp) {
+        if (generation != mCustomBgGeneration) {
+            if (DEBUG) log("onCustomBackgroundLoaded: discarding outdated background");
+            return;
+        }
+        mCustomBg = bmp;
+        updateMediaMetaData();
+    }
+
+    /**
+     * Decodes lockscreen wallpaper subsampled to display size and blurs it if requested.
+     * Display sides are matched with image sides by orientation of the image itself.
+     * Blurred image is cached on disk keyed by source file state and processing parameters
+     * so unchanged wallpaper costs just one small decode next time. Unblurred image is not
+     * cached as subsampled decode of the source costs about the same and keeps it lossless.
+     * Runs on background thread.
+     */
+    private static Bitmap loadCustomBackgroundImage(File source, int blurIntensity,
+                                                    int reqShortSide, int reqLongSide) {
+        try {
+            if (!source.exists()) return null;
+
+            final File cacheDir = Utils.getCacheDir(mContext);
+            File cacheFile = null;
+            if (blurIntensity > 0) {
+                final String key = source.lastModified() + ":" + source.length() + ":" +
+                        reqShortSide + "x" + reqLongSide + ":" + blurIntensity;
+                cacheFile = new File(cacheDir,
+                        BG_CACHE_PREFIX + Integer.toHexString(key.hashCode()) + ".webp");
+            } else {
+                clearBackgroundCache(cacheDir);
+            }
+            if (cacheFile != null && cacheFile.exists()) {
+                Bitmap bmp = BitmapFactory.decodeFile(cacheFile.getPath());
+                if (bmp != null) {
+                    if (DEBUG) log("loadCustomBackgroundImage: using cached " + cacheFile);
+                    return bmp;
+                }
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(source.getPath(), options);
+            final boolean portrait = options.outHeight >= options.outWidth;
+            options.inSampleSize = BitmapUtils.calculateInSampleSize(options,
+                    portrait ? reqShortSide : reqLongSide, portrait ? reqLongSide : reqShortSide);
+            options.inJustDecodeBounds = false;
+            Bitmap bmp = BitmapFactory.decodeFile(source.getPath(), options);
+            if (bmp == null) return null;
+            if (DEBUG) log("loadCustomBackgroundImage: decoded " + bmp.getWidth() + "x" +
+                    bmp.getHeight() + " with inSampleSize=" + options.inSampleSize);
+
+            if (blurIntensity > 0) {
+                Bitmap blurred = BitmapUtils.blurBitmap(mContext, bmp, blurIntensity);
+                bmp.recycle();
+                bmp = blurred;
+            }
+
+            if (cacheFile != null) {
+                writeBackgroundCache(bmp, cacheFile);
+            }
+            return bmp;
+        } catch (Throwable t) {
+            GravityBox.log(TAG, "Error loading lockscreen background: ", t);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void clearBackgroundCache(File cacheDir) {
+        File[] oldFiles = cacheDir.listFiles((dir, name) -> name.startsWith(BG_CACHE_PREFIX));
+        if (oldFiles != null) {
+            for (File f : oldFiles) {
+                f.delete();
+            }
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void writeBackgroundCache(Bitmap bmp, File cacheFile) {
+        clearBackgroundCache(cacheFile.getParentFile());
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            bmp.compress(Bitmap.CompressFormat.WEBP, 90, out);
+        } catch (IOException e) {
+            GravityBox.log(TAG, "Error writing lockscreen background cache: ", e);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            tmpFile.delete();
+        }
+    }
+
     private static void updateMediaMetaData() {
         if (ModStatusBar.getStatusBar() != null) {
             try {
@@ -830,14 +940,17 @@ public class ModLockscreen {
         }
     }
 
-    private static synchronized void setLastScreenBackground(boolean refresh) {
+    private static synchronized void setLastScreenBackground() {
         try {
-            String kisImageFile = mGbContext.getFilesDir() + "/kis_image.png";
-            mCustomBg = BitmapFactory.decodeFile(kisImageFile);
-            if (refresh) {
-                updateMediaMetaData();
-            }
-            if (DEBUG_KIS) log("setLastScreenBackground: Last screen background updated");
+            final int generation = ++mCustomBgGeneration;
+            final String kisImageFile = mGbContext.getFilesDir() + "/" +
+                    KeyguardImageService.KIS_IMAGE_FILE_NAME;
+            AsyncTask.execute(() -> {
+                final Bitmap bmp = BitmapFactory.decodeFile(kisImageFile);
+                new Handler(Looper.getMainLooper()).post(() ->
+                        onCustomBackgroundLoaded(generation, bmp));
+                if (DEBUG_KIS) log("setLastScreenBackground: Last screen background decoded");
+            });
         } catch (Throwable t) {
             GravityBox.log(TAG, t);
         }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.q.gravitybox;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import de.robv.android.xposed.XSharedPreferences;
+
+/**
+ * Read-only view of XSharedPreferences for hook-time reads.
+ * Integers stored as strings (list preferences) are parsed only once and parsed
+ * value is reused for as long as the stored string stays the same.
+ * One snapshot is shared by all callers of the same preferences instance.
+ */
+public class PrefsSnapshot {
+    private static final String TAG = "GB:PrefsSnapshot";
+    private static final boolean DEBUG = false;
+
+    private static final Map<XSharedPreferences, PrefsSnapshot> sSnapshots = new IdentityHashMap<>();
+
+    /**
+     * Returns shared snapshot of preferences, reloaded first if file has changed since last load
+     * (XSharedPreferences.reload() is no-op for unchanged file)
+     */
+    public static PrefsSnapshot of(XSharedPreferences prefs) {
+        PrefsSnapshot snapshot;
+        synchronized (sSnapshots) {
+            snapshot = sSnapshots.get(prefs);
+            if (snapshot == null) {
+                snapshot = new PrefsSnapshot(prefs);
+                sSnapshots.put(prefs, snapshot);
+                return snapshot;
+            }
+        }
+        snapshot.reload();
+        return snapshot;
+    }
+
+    private static final class ParsedInt {
+        final String source;
+        final int value;
+
+        ParsedInt(String source, int value) {
+            this.source = source;
+            this.value = value;
+        }
+    }
+
+    private final XSharedPreferences mPrefs;
+    private final Map<String, ParsedInt> mParsedInts = new HashMap<>();
+
+    private PrefsSnapshot(XSharedPreferences prefs) {
+        mPrefs = prefs;
+        reload();
+    }
+
+    /**
+     * Reloads values if underlying file has been modified since last load
+     */
+    public void reload() {
+        mPrefs.reload();
+    }
+
+    public XSharedPreferences getPreferences() {
+        return mPrefs;
+    }
+
+    public boolean contains(String key) {
+        return mPrefs.contains(key);
+    }
+
+    public boolean getBoolean(String key, boolean defValue) {
+        return mPrefs.getBoolean(key, defValue);
+    }
+
+    public int getInt(String key, int defValue) {
+        return mPrefs.getInt(key, defValue);
+    }
+
+    public long getLong(String key, long defValue) {
+        return mPrefs.getLong(key, defValue);
+    }
+
+    public String getString(String key, String defValue) {
+        return mPrefs.getString(key, defValue);
+    }
+
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return mPrefs.getStringSet(key, defValues);
+    }
+
+    /**
+     * Returns integer value stored as string, e.g. by ListPreference.
+     * Parsed value is cached until stored string changes.
+     * @throws NumberFormatException if stored value is not a valid integer
+     */
+    public synchronized int getIntFromString(String key, int defValue) {
+        String v = mPrefs.getString(key, null);
+        if (v == null) {
+            return defValue;
+        }
+        ParsedInt parsed = mParsedInts.get(key);
+        if (parsed == null || !parsed.source.equals(v)) {
+            parsed = new ParsedInt(v, Integer.parseInt(v));
+            mParsedInts.put(key, parsed);
+            if (DEBUG) GravityBox.log(TAG, "Parsed " + key + "=" + parsed.value);
+        }
+        return parsed.value;
+    }
+}
@@ -19,6 +19,7 @@ package com.ceco.q.gravitybox;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,7 +35,9 @@ import android.os.Handler;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.service.notification.StatusBarNotification;
+import android.view.Choreographer;
 import android.widget.RemoteViews;
 
 import com.ceco.q.gravitybox.managers.BroadcastMediator;
@@ -50,6 +53,7 @@ public class ProgressBarController implements BroadcastMediator.Receiver {
 
     private static final long MAX_IDLE_TIME = 10000; // ms
     private static final int IDLE_CHECK_FREQUENCY = 5000; // ms
+    private static final int VISIBLE_STEPS = 100; // progress changes within one step are not propagated
     private static final String EXTRA_PROGRESS = "android.progress";
     private static final String EXTRA_PROGRESS_MAX = "android.progressMax";
 
@@ -78,6 +82,7 @@ public class ProgressBarController implements BroadcastMediator.Receiver {
         int progress;
         int max;
         long lastUpdatedMs;
+        boolean updatePending;
 
         public ProgressInfo(String id, int progress, int max) {
             this.id = id;
@@ -90,8 +95,8 @@ public class ProgressBarController implements BroadcastMediator.Receiver {
             return (max > 0 ? ((float)progress/(float)max) : 0f);
         }
 
-        boolean isIdle() {
-            long idleTime = (System.currentTimeMillis() - this.lastUpdatedMs);
+        boolean isIdle(long now) {
+            long idleTime = (now - this.lastUpdatedMs);
             if (DEBUG) log("ProgressInfo: '" + this.id + 
                     "' is idle for " + idleTime + "ms");
             return (idleTime > MAX_IDLE_TIME);
@@ -109,23 +114,37 @@ public class ProgressBarController implements BroadcastMediator.Receiver {
     private boolean mSoundWhenScreenOffOnly;
     private PowerManager mPowerManager;
     private Handler mHandler;
+    private Choreographer mChoreographer;
+    private int mUpdateInterval; // ms; 0 means once per frame
+    private boolean mFlushScheduled;
+    private long mLastFlushMs;
 
     private Runnable mRemoveIdleRunnable = new Runnable() {
         @Override
         public void run() {
             synchronized (mProgressList) {
-                List<String> toRemove = new ArrayList<>();
-                for (ProgressInfo pi : mProgressList.values())
-                    if (pi.isIdle()) toRemove.add(pi.id);
-                for (String id : toRemove)
-                    removeProgress(id, false);
+                final long now = System.currentTimeMillis();
+                boolean removed = false;
+                Iterator<ProgressInfo> it = mProgressList.values().iterator();
+                while (it.hasNext()) {
+                    ProgressInfo pi = it.next();
+                    if (pi.isIdle(now)) {
+                        it.remove();
+                        removed = true;
+                        onProgressRemoved(pi.id, false);
+                    }
+                }
                 if (mProgressList.size() > 0) {
                     mHandler.postDelayed(this, IDLE_CHECK_FREQUENCY);
+                } else if (removed) {
+                    onProgressListEmpty();
                 }
             }
         }
     };
 
+    private final Choreographer.FrameCallback mFlushCallback = frameTimeNanos -> flushPendingUpdates();
+
     public ProgressBarController(Context ctx, XSharedPreferences prefs) {
         mContext = ctx;
 
@@ -135,9 +154,12 @@ public class ProgressBarController implements BroadcastMediator.Receiver {
                 "content://settings/system/notification_sound");
         mSoundWhenScreenOffOnly = prefs.getBoolean(
                 GravityBoxSettings.PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_SCREEN_OFF, false);
+        mUpdateInterval = prefs.getInt(
+                GravityBoxSettings.PREF_KEY_STATUSBAR_DOWNLOAD_PROGRESS_UPDATE_INTERVAL, 0);
 
         mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
         mHandler = new Handler();
+        mChoreographer = Choreographer.getInstance();
 
         SysUiManagers.BroadcastMediator.subscribe(this,
                 GravityBoxSettings.ACTION_PREF_STATUSBAR_DOWNLOAD_PROGRESS_CHANGED);
@@ -236,30 +258,77 @@ public class ProgressBarController implements BroadcastMediator.Receiver {
             if (id == null) {
                 mProgressList.clear();
                 if (DEBUG) log("removeProgress: all cleared");
-            } else if (mProgressList.containsKey(id)) {
-                mProgressList.remove(id);
-                notifyProgressRemoved(id);
-                if (DEBUG) log("removeProgress: removed progress for '" + id + "'");
-                if (allowSound) maybePlaySound();
+            } else if (mProgressList.remove(id) != null) {
+                onProgressRemoved(id, allowSound);
             }
             if (mProgressList.size() == 0) {
-                notifyProgressTrackingStopped();
-                resetIdleChecker();
+                onProgressListEmpty();
             }
         }
     }
 
+    private void onProgressRemoved(String id, boolean allowSound) {
+        notifyProgressRemoved(id);
+        if (DEBUG) log("removeProgress: removed progress for '" + id + "'");
+        if (allowSound) maybePlaySound();
+    }
+
+    private void onProgressListEmpty() {
+        notifyProgressTrackingStopped();
+        resetIdleChecker();
+        if (mFlushScheduled) {
+            mChoreographer.removeFrameCallback(mFlushCallback);
+            mFlushScheduled = false;
+        }
+    }
+
     private void updateProgress(String id, int max, int progress) {
-        ProgressInfo pi = mProgressList.get(id);
-        if (pi != null) {
+        synchronized (mProgressList) {
+            ProgressInfo pi = mProgressList.get(id);
+            if (pi == null) return;
+
+            pi.lastUpdatedMs = System.currentTimeMillis();
+            if (getVisibleStep(progress, max) == getVisibleStep(pi.progress, pi.max)) {
+                if (DEBUG) log("updateProgress: no visible change for '" + id + "'");
+                return;
+            }
             pi.max = max;
             pi.progress = progress;
-            pi.lastUpdatedMs = System.currentTimeMillis();
+            pi.updatePending = true;
             if (DEBUG) {
                 log("updateProgress: updated progress for '" + id + "': " +
                         "max=" + max + "; progress=" + progress);
             }
-            notifyProgressUpdated(pi);
+            scheduleFlush();
+        }
+    }
+
+    private static int getVisibleStep(int progress, int max) {
+        return (max > 0 ? (int) ((long) progress * VISIBLE_STEPS / max) : 0);
+    }
+
+    /**
+     * Listeners get notified about pending updates at most once per frame
+     * or once per mUpdateInterval, whichever is longer
+     */
+    private void scheduleFlush() {
+        if (mFlushScheduled) return;
+
+        mFlushScheduled = true;
+        final long delay = mLastFlushMs + mUpdateInterval - SystemClock.uptimeMillis();
+        mChoreographer.postFrameCallbackDelayed(mFlushCallback, Math.max(0, delay));
+    }
+
+    private void flushPendingUpdates() {
+        synchronized (mProgressList) {
+            mFlushScheduled = false;
+            mLastFlushMs = SystemClock.uptimeMillis();
+            for (ProgressInfo pi : mProgressList.values()) {
+                if (pi.updatePending) {
+                    pi.updatePending = false;
+                    notifyProgressUpdated(pi);
+                }
+            }
         }
     }
 
@@ -455,6 +524,9 @@ public class ProgressBarController implements BroadcastMediator.Receiver {
             } else if (intent.hasExtra(GravityBoxSettings.EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_SCREEN_OFF)) {
                 mSoundWhenScreenOffOnly = intent.getBooleanExtra(
                             GravityBoxSettings.EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_SOUND_SCREEN_OFF, false);
+            } else if (intent.hasExtra(GravityBoxSettings.EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_UPDATE_INTERVAL)) {
+                mUpdateInterval = intent.getIntExtra(
+                            GravityBoxSettings.EXTRA_STATUSBAR_DOWNLOAD_PROGRESS_UPDATE_INTERVAL, 0);
             } else {
                 notifyPreferencesChanged(intent);
             }
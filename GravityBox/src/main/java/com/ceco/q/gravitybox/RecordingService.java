@@ -18,13 +18,15 @@ package com.ceco.q.gravitybox;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
@@ -36,7 +38,9 @@ import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.ResultReceiver;
 import android.provider.MediaStore;
@@ -52,6 +56,8 @@ public class RecordingService extends Service {
     public static final String EXTRA_STATUS_MESSAGE = "statusMessage";
     public static final String EXTRA_AUDIO_URI = "audioUri";
     public static final String EXTRA_SAMPLING_RATE = "samplingRate";
+    public static final String EXTRA_BITRATE = "bitrate";
+    public static final String EXTRA_DIRECT_WRITE = "directWrite";
 
     public static final int RECORDING_STATUS_IDLE = 0;
     public static final int RECORDING_STATUS_STARTED = 1;
@@ -59,14 +65,24 @@ public class RecordingService extends Service {
     public static final int RECORDING_STATUS_ERROR = -1;
 
     public static final int DEFAULT_SAMPLING_RATE = 22050;
+    public static final int DEFAULT_BITRATE = 96000;
 
     private MediaRecorder mRecorder;
     private int mRecordingStatus = RECORDING_STATUS_IDLE;
+    private Notification.Builder mNotifBuilder;
     private Notification mRecordingNotif;
     private PendingIntent mPendingIntent;
     private int mSamplingRate = DEFAULT_SAMPLING_RATE;
+    private int mBitrate = DEFAULT_BITRATE;
+    private boolean mDirectWrite;
     private File mLastAudioFile;
+    // MediaStore entry recorder writes into directly when in direct write mode
+    private Uri mPendingAudioUri;
+    private ParcelFileDescriptor mPendingAudioPfd;
     private Uri mLastAudioUri;
+    private Handler mHandler;
+    // stores finished recordings off the main thread
+    private final ExecutorService mSaveExecutor = Executors.newSingleThreadExecutor();
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -78,6 +94,7 @@ public class RecordingService extends Service {
         super.onCreate();
 
         mRecordingStatus = RECORDING_STATUS_IDLE;
+        mHandler = new Handler(Looper.getMainLooper());
 
         Notification.Builder builder = new Notification.Builder(
                 this, GravityBoxApplication.NOTIF_CHANNEL_SERVICES);
@@ -89,6 +106,7 @@ public class RecordingService extends Service {
         Intent intent = new Intent(ACTION_RECORDING_STOP);
         mPendingIntent = PendingIntent.getService(this, 0, intent, 0);
         builder.setContentIntent(mPendingIntent);
+        mNotifBuilder = builder;
         mRecordingNotif = builder.build();
     }
 
@@ -99,6 +117,10 @@ public class RecordingService extends Service {
                 if (intent.hasExtra(EXTRA_SAMPLING_RATE)) {
                     mSamplingRate = intent.getIntExtra(EXTRA_SAMPLING_RATE, DEFAULT_SAMPLING_RATE);
                 }
+                if (intent.hasExtra(EXTRA_BITRATE)) {
+                    mBitrate = intent.getIntExtra(EXTRA_BITRATE, DEFAULT_BITRATE);
+                }
+                mDirectWrite = intent.getBooleanExtra(EXTRA_DIRECT_WRITE, false);
                 startRecording();
                 return START_STICKY;
             } else if (intent.getAction().equals(ACTION_RECORDING_STOP)) {
@@ -133,16 +155,26 @@ public class RecordingService extends Service {
 
     private void startRecording() {
         String statusMessage = "";
-        mLastAudioFile = new File(Utils.getCacheDir(this) + "/AUDIO_" + new SimpleDateFormat(
-                "yyyyMMdd_HHmmss", Locale.US).format(new Date()));
+        final String fileName = "AUDIO_" + new SimpleDateFormat(
+                "yyyyMMdd_HHmmss", Locale.US).format(new Date());
 
         try {
             mRecorder = new MediaRecorder();
             mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
             mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mRecorder.setOutputFile(mLastAudioFile);
+            if (mDirectWrite) {
+                mLastAudioFile = null;
+                mPendingAudioUri = createPendingEntry(fileName);
+                // MPEG4 writer seeks back to finalize headers so it needs read-write access
+                mPendingAudioPfd = getContentResolver().openFileDescriptor(
+                        mPendingAudioUri, "rw", null);
+                mRecorder.setOutputFile(mPendingAudioPfd.getFileDescriptor());
+            } else {
+                mLastAudioFile = new File(Utils.getCacheDir(this) + "/" + fileName);
+                mRecorder.setOutputFile(mLastAudioFile);
+            }
             mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            mRecorder.setAudioEncodingBitRate(96000);
+            mRecorder.setAudioEncodingBitRate(mBitrate);
             mRecorder.setAudioSamplingRate(mSamplingRate);
             mRecorder.setOnErrorListener(mOnErrorListener);
             mRecorder.prepare();
@@ -153,6 +185,7 @@ public class RecordingService extends Service {
             e.printStackTrace();
             mRecordingStatus = RECORDING_STATUS_ERROR;
             statusMessage = e.getMessage();
+            discardPendingEntry();
         } finally {
             Intent i = new Intent(ACTION_RECORDING_STATUS_CHANGED);
             i.putExtra(EXTRA_RECORDING_STATUS, mRecordingStatus);
@@ -164,60 +197,132 @@ public class RecordingService extends Service {
     private void stopRecording() {
         if (mRecorder == null) return;
 
-        String statusMessage = "";
-        Intent i = new Intent(ACTION_RECORDING_STATUS_CHANGED);
         try {
             mRecorder.stop();
             mRecorder.release();
             mRecorder = null;
-            mRecordingStatus = RECORDING_STATUS_STOPPED;
-            mLastAudioUri = insertIntoMediaStore();
-            i.putExtra(EXTRA_AUDIO_URI, mLastAudioUri.toString());
         } catch (Exception e) {
             e.printStackTrace();
+            mRecorder = null;
+            discardPendingEntry();
+            onRecordingSaved(null, e.getMessage());
+            return;
+        }
+
+        // Keep notification while the file is being stored
+        mNotifBuilder.setContentText(getString(R.string.quick_settings_qr_saving_notif));
+        mNotifBuilder.setContentIntent(null);
+        getSystemService(NotificationManager.class).notify(1, mNotifBuilder.build());
+
+        final File audioFile = mLastAudioFile;
+        final Uri pendingUri = mPendingAudioUri;
+        final ParcelFileDescriptor pendingPfd = mPendingAudioPfd;
+        mPendingAudioUri = null;
+        mPendingAudioPfd = null;
+        mSaveExecutor.execute(() -> {
+            Uri uri = null;
+            String error = null;
+            try {
+                uri = pendingUri != null ?
+                        publishPendingEntry(pendingUri, pendingPfd) :
+                        insertIntoMediaStore(audioFile);
+            } catch (Exception e) {
+                e.printStackTrace();
+                error = e.getMessage();
+            }
+            final Uri savedUri = uri;
+            final String statusMessage = error;
+            mHandler.post(() -> onRecordingSaved(savedUri, statusMessage));
+        });
+    }
+
+    private void onRecordingSaved(Uri uri, String error) {
+        Intent i = new Intent(ACTION_RECORDING_STATUS_CHANGED);
+        if (uri != null) {
+            mRecordingStatus = RECORDING_STATUS_STOPPED;
+            mLastAudioUri = uri;
+            i.putExtra(EXTRA_AUDIO_URI, mLastAudioUri.toString());
+        } else {
             mRecordingStatus = RECORDING_STATUS_ERROR;
-            statusMessage = e.getMessage();
-        } finally {
-            i.putExtra(EXTRA_RECORDING_STATUS, mRecordingStatus);
-            i.putExtra(EXTRA_STATUS_MESSAGE, statusMessage);
-            sendBroadcast(i);
-            stopForeground(true);
         }
+        i.putExtra(EXTRA_RECORDING_STATUS, mRecordingStatus);
+        i.putExtra(EXTRA_STATUS_MESSAGE, error == null ? "" : error);
+        sendBroadcast(i);
+        stopForeground(true);
+
+        // restore notification for next recording
+        mNotifBuilder.setContentText(getString(R.string.quick_settings_qr_recording_notif));
+        mNotifBuilder.setContentIntent(mPendingIntent);
     }
 
-    private Uri insertIntoMediaStore() throws Exception {
+    private Uri createPendingEntry(String displayName) throws Exception {
         ContentValues values = new ContentValues();
-        values.put(MediaStore.Audio.Media.DISPLAY_NAME, mLastAudioFile.getName());
+        values.put(MediaStore.Audio.Media.DISPLAY_NAME, displayName);
         values.put(MediaStore.Audio.Media.MIME_TYPE, "audio/mp4");
         values.put(MediaStore.Audio.Media.IS_PENDING, 1);
         values.put(MediaStore.Audio.Media.RELATIVE_PATH, Environment.DIRECTORY_MUSIC + "/AudioRecordings");
 
-        ContentResolver resolver = getContentResolver();
         Uri collection = MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
-        Uri item = resolver.insert(collection, values);
-
-        ParcelFileDescriptor pfd = resolver.openFileDescriptor(item, "w", null);
-        InputStream is = new FileInputStream(mLastAudioFile);
-        OutputStream os = new FileOutputStream(pfd.getFileDescriptor());
-        byte[] buffer = new byte[4096];
-        int length;
-        while((length = is.read(buffer)) > 0) {
-            os.write(buffer, 0, length);
+        Uri item = getContentResolver().insert(collection, values);
+        if (item == null) {
+            throw new IllegalStateException("Failed to create MediaStore entry for " + displayName);
         }
-        os.flush();
-        is.close();
-        os.close();
+        return item;
+    }
 
-        values.clear();
-        values.put(MediaStore.Audio.Media.IS_PENDING, 0);
-        resolver.update(item, values, null, null);
+    private void discardPendingEntry() {
+        if (mPendingAudioPfd != null) {
+            try { mPendingAudioPfd.close(); } catch (Exception ignored) { }
+            mPendingAudioPfd = null;
+        }
+        if (mPendingAudioUri != null) {
+            try {
+                getContentResolver().delete(mPendingAudioUri, null, null);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mPendingAudioUri = null;
+        }
+    }
 
+    // Runs on save executor
+    private Uri publishPendingEntry(Uri item, ParcelFileDescriptor pfd) throws Exception {
+        ContentResolver resolver = getContentResolver();
+        try {
+            if (pfd != null) {
+                pfd.close();
+            }
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Audio.Media.IS_PENDING, 0);
+            resolver.update(item, values, null, null);
+        } catch (Exception e) {
+            resolver.delete(item, null, null);
+            throw e;
+        }
         return item;
     }
 
+    // Runs on save executor
+    private Uri insertIntoMediaStore(File audioFile) throws Exception {
+        ContentResolver resolver = getContentResolver();
+        Uri item = createPendingEntry(audioFile.getName());
+
+        try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(item, "w", null);
+             FileChannel in = new FileInputStream(audioFile).getChannel();
+             FileChannel out = new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
+            Utils.transferFile(in, out, null);
+        } catch (Exception e) {
+            resolver.delete(item, null, null);
+            throw e;
+        }
+
+        return publishPendingEntry(item, null);
+    }
+
     @Override
     public void onDestroy() {
         stopRecording();
+        mSaveExecutor.shutdown();
         super.onDestroy();
     }
 }
\ No newline at end of file
@@ -14,13 +14,23 @@
  */
 package com.ceco.q.gravitybox;
 
+import android.app.Application;
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.os.LocaleList;
+import android.util.LruCache;
 import android.util.SparseArray;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 import de.robv.android.xposed.XC_MethodHook;
@@ -35,11 +45,6 @@ public class ResourceProxy {
         XposedBridge.log(TAG + ": " + message);
     }
 
-    private static SparseArray<ResourceSpec> sCache = new SparseArray<>();
-    private static int getCacheKey(String pkgName, int resId) {
-        return (pkgName + "_" + resId).hashCode();
-    }
-
     public static class ResourceSpec {
         private Interceptor interceptor;
         public int resId;
@@ -70,7 +75,7 @@ public class ResourceProxy {
 
     static abstract class Interceptor {
         private String supportedPackageName;
-        private List<String> supportedResourceNames;
+        private Set<String> supportedResourceNames;
         private List<Integer> supportedFakeResIds;
         private boolean isFramework;
         private Pattern packageNamePattern;
@@ -82,7 +87,7 @@ public class ResourceProxy {
                     this.supportedPackageName.replace(".", "\\.") +
                     "+((?:\\.\\w+)+)?$");
             this.isFramework = "android".equals(packageName);
-            this.supportedResourceNames = supportedResourceNames;
+            this.supportedResourceNames = new HashSet<>(supportedResourceNames);
             this.supportedFakeResIds = supportedFakeResIds;
         }
 
@@ -98,19 +103,118 @@ public class ResourceProxy {
         return 0x7e000000 | (resourceName.hashCode() & 0x00ffffff);
     }
 
+    private static boolean isFakeResId(int resId) {
+        return (resId & 0xff000000) == 0x7e000000;
+    }
+
+    private static Context sSystemContext;
+
     private static Context getGbContext(Configuration config) {
         try {
-            Class<?> atClass = XposedHelpers.findClass("android.app.ActivityThread", null);
-            Object currentAt = XposedHelpers.callStaticMethod(atClass, "currentActivityThread");
-            Context systemContext = (Context) XposedHelpers.callMethod(currentAt, "getSystemContext");
-            return Utils.getGbContext(systemContext, config);
+            if (sSystemContext == null) {
+                Class<?> atClass = XposedHelpers.findClass("android.app.ActivityThread", null);
+                Object currentAt = XposedHelpers.callStaticMethod(atClass, "currentActivityThread");
+                sSystemContext = (Context) XposedHelpers.callMethod(currentAt, "getSystemContext");
+            }
+            return Utils.getGbContext(sSystemContext, config);
         } catch (Throwable t) {
             GravityBox.log(TAG, t);
             return null;
         }
     }
 
-    private final List<Interceptor> mInterceptors = new ArrayList<>();
+    // Configuration fields fake resources depend on
+    private static final class ConfigKey {
+        final int densityDpi;
+        final int uiMode;
+        final int orientation;
+        final LocaleList locales;
+
+        ConfigKey(Configuration config) {
+            densityDpi = config.densityDpi;
+            uiMode = config.uiMode;
+            orientation = config.orientation;
+            locales = config.getLocales();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ConfigKey)) return false;
+            ConfigKey k = (ConfigKey) o;
+            return (densityDpi == k.densityDpi && uiMode == k.uiMode &&
+                    orientation == k.orientation && locales.equals(k.locales));
+        }
+
+        @Override
+        public int hashCode() {
+            return ((densityDpi * 31 + uiMode) * 31 + orientation) * 31 + locales.hashCode();
+        }
+    }
+
+    // GB context and fake resources resolved for particular configuration
+    private static final class ConfigEntry {
+        final Context gbContext;
+        // drawables are kept as constant states so every caller gets its own instance
+        final SparseArray<Object> fakeResources = new SparseArray<>();
+
+        ConfigEntry(Context gbContext) {
+            this.gbContext = gbContext;
+        }
+    }
+
+    private static final int CONFIG_CACHE_SIZE = 4;
+    private final LruCache<ConfigKey, ConfigEntry> mConfigCache = new LruCache<>(CONFIG_CACHE_SIZE);
+
+    // Immutable snapshot of registered interceptors replaced as a whole on every change
+    // so hooks can read it without locking
+    private static final class Registry {
+        final Interceptor[] interceptors;
+        final Interceptor frameworkInterceptor;
+        final SparseArray<Interceptor> fakeResIdInterceptors;
+
+        Registry(Interceptor[] interceptors) {
+            this.interceptors = interceptors;
+            Interceptor fwi = null;
+            fakeResIdInterceptors = new SparseArray<>();
+            for (Interceptor i : interceptors) {
+                if (fwi == null && i.isFramework) {
+                    fwi = i;
+                }
+                for (int fakeResId : i.supportedFakeResIds) {
+                    if (fakeResIdInterceptors.get(fakeResId) == null) {
+                        fakeResIdInterceptors.put(fakeResId, i);
+                    }
+                }
+            }
+            frameworkInterceptor = fwi;
+        }
+    }
+
+    private volatile Registry mRegistry = new Registry(new Interceptor[0]);
+
+    // Resolved resource specs of single asset manager (resource IDs are unique only within it)
+    // keyed by resource ID. Resources no interceptor is interested in are kept as NOT_INTERCEPTED
+    // so they are resolved only once. Published specs array is never modified; a miss publishes
+    // its modified copy so hooks can read it without locking.
+    private static final class AssetTable {
+        final WeakReference<AssetManager> assets;
+        volatile SparseArray<ResourceSpec> specs = new SparseArray<>();
+
+        AssetTable(AssetManager assets) {
+            this.assets = new WeakReference<>(assets);
+        }
+    }
+
+    private static final ResourceSpec NOT_INTERCEPTED = new ResourceSpec(null, 0, null, null);
+    // there are just few asset managers per process so linear scan is cheaper than hashing;
+    // replaced as a whole on change
+    private volatile AssetTable[] mResolutionCache = new AssetTable[0];
+    private final Object mResolutionLock = new Object();
+
+    private final LongAdder mCacheHits = new LongAdder();
+    private final LongAdder mCacheMisses = new LongAdder();
+    private final LongAdder mHookTimeNanos = new LongAdder();
 
     ResourceProxy() {
         createIntegerHook();
@@ -123,31 +227,41 @@ public class ResourceProxy {
     }
 
     void addInterceptor(Interceptor interceptor) {
-        synchronized (mInterceptors) {
-            if (!mInterceptors.contains(interceptor)) {
-                mInterceptors.add(interceptor);
-            }
+        synchronized (mResolutionLock) {
+            List<Interceptor> interceptors = new ArrayList<>(Arrays.asList(mRegistry.interceptors));
+            if (interceptors.contains(interceptor)) return;
+            interceptors.add(interceptor);
+            mRegistry = new Registry(interceptors.toArray(new Interceptor[0]));
+            // resources already resolved as not intercepted might be of interest now
+            mResolutionCache = new AssetTable[0];
         }
     }
 
-    private Interceptor findInterceptorForFramework() {
-        synchronized (mInterceptors) {
-            return mInterceptors.stream().filter((i) -> i.isFramework)
-                    .findFirst().orElse(null);
+    /**
+     * Writes resolution cache and hook time counters of this process to log
+     */
+    void dumpStats() {
+        final long hits = mCacheHits.sum();
+        final long misses = mCacheMisses.sum();
+        int entries = 0;
+        for (AssetTable table : mResolutionCache) {
+            entries += table.specs.size();
         }
+        log("Stats for " + Application.getProcessName() + ": hits=" + hits + "; misses=" + misses +
+                "; cached=" + entries + "; hookTime=" + (mHookTimeNanos.sum() / 1000000) + "ms" +
+                "; avg=" + (hits + misses == 0 ? 0 : mHookTimeNanos.sum() / (hits + misses)) + "ns");
     }
 
     private Interceptor findInterceptorForResource(String packageName, String resName) {
         if (packageName == null || resName == null) return null;
-        Interceptor fwi = findInterceptorForFramework();
-        synchronized (mInterceptors) {
-            for (Interceptor i : mInterceptors) {
-                if (i.packageNamePattern.matcher(packageName).matches()) {
-                    if (i.supportedResourceNames.contains(resName)) {
-                        return i;
-                    } else if (fwi != null && fwi.supportedResourceNames.contains(resName)) {
-                        return  fwi;
-                    }
+        final Registry registry = mRegistry;
+        final Interceptor fwi = registry.frameworkInterceptor;
+        for (Interceptor i : registry.interceptors) {
+            if (i.packageNamePattern.matcher(packageName).matches()) {
+                if (i.supportedResourceNames.contains(resName)) {
+                    return i;
+                } else if (fwi != null && fwi.supportedResourceNames.contains(resName)) {
+                    return  fwi;
                 }
             }
         }
@@ -155,56 +269,135 @@ public class ResourceProxy {
     }
 
     private Interceptor findInterceptorForFakeResourceId(int fakeResId) {
-        synchronized (mInterceptors) {
-            return mInterceptors.stream().filter((i) ->
-                    i.supportedFakeResIds.contains(fakeResId))
-                    .findFirst().orElse(null);
-        }
+        return mRegistry.fakeResIdInterceptors.get(fakeResId);
     }
 
     private XC_MethodHook mInterceptHook = new XC_MethodHook() {
         @Override
         protected void beforeHookedMethod(MethodHookParam param) {
             final int resId = (int)param.args[0];
+            if (!isFakeResId(resId)) return;
             Interceptor i = findInterceptorForFakeResourceId(resId);
             if (i == null) return;
 
-            Context gbContext = getGbContext(((Resources) param.thisObject).getConfiguration());
-            if (gbContext != null) {
-                Object value = i.onGetFakeResource(gbContext, resId);
-                if (value != null) {
-                    if (DEBUG) log("onGetFakeResource: resId=" + resId + "; value=" + value);
-                    param.setResult(value);
-                    param.getExtra().putBoolean("returnEarly", true);
-                }
+            Object value = getFakeResource(i, ((Resources) param.thisObject).getConfiguration(), resId);
+            if (value != null) {
+                if (DEBUG) log("onGetFakeResource: resId=" + resId + "; value=" + value);
+                param.setResult(value);
             }
         }
         @Override
         protected void afterHookedMethod(MethodHookParam param) {
-            if (param.getExtra().getBoolean("returnEarly")) {
+            final int resId = (int)param.args[0];
+            if (param.hasThrowable() ||
+                    (isFakeResId(resId) && findInterceptorForFakeResourceId(resId) != null)) {
                 if (DEBUG) log(param.method.getName() + " after hook suppressed by before hook");
                 return;
             }
+            final long start = System.nanoTime();
             Object value = param.getResult();
             ResourceSpec spec = getOrCreateResourceSpec((Resources)param.thisObject,
-                    (int)param.args[0], value);
+                    resId, value);
             if (spec != null && spec.interceptor.onIntercept(spec) &&
                         value.getClass().isAssignableFrom(spec.value.getClass())) {
                 if (DEBUG) log(param.method.getName() + ": onIntercept: " + spec.toString());
                 param.setResult(spec.value);
             }
+            mHookTimeNanos.add(System.nanoTime() - start);
         }
     };
 
+    private Object getFakeResource(Interceptor i, Configuration config, int fakeResId) {
+        final ConfigKey key = new ConfigKey(config);
+        ConfigEntry entry = mConfigCache.get(key);
+        if (entry == null) {
+            Context gbContext = getGbContext(config);
+            if (gbContext == null) return null;
+            entry = new ConfigEntry(gbContext);
+            mConfigCache.put(key, entry);
+            if (DEBUG) log("New GB context for configuration: " + config);
+        }
+
+        Object cached;
+        synchronized (entry) {
+            cached = entry.fakeResources.get(fakeResId);
+        }
+        if (cached instanceof Drawable.ConstantState) {
+            return ((Drawable.ConstantState) cached).newDrawable(entry.gbContext.getResources());
+        } else if (cached != null) {
+            return cached;
+        }
+
+        Object value = i.onGetFakeResource(entry.gbContext, fakeResId);
+        if (value instanceof Drawable) {
+            cached = ((Drawable) value).getConstantState();
+        } else {
+            cached = value;
+        }
+        if (cached != null) {
+            synchronized (entry) {
+                entry.fakeResources.put(fakeResId, cached);
+            }
+        }
+        return value;
+    }
+
     private ResourceSpec getOrCreateResourceSpec(Resources res, int resId, Object value) {
-        String pkgName = getResourcePackageName(res, resId);
-        if (pkgName == null) return null;
+        final AssetManager assets = res.getAssets();
+        final AssetTable table = findAssetTable(mResolutionCache, assets);
+        ResourceSpec spec = table != null ? table.specs.get(resId) : null;
+
+        if (spec != null) {
+            mCacheHits.increment();
+            if (spec == NOT_INTERCEPTED) return null;
+            spec.value = value;
+            return spec;
+        }
 
-        int cacheKey = getCacheKey(pkgName, resId);
-        if (sCache.get(cacheKey) != null) {
-            sCache.get(cacheKey).value = value;
-            return sCache.get(cacheKey);
+        mCacheMisses.increment();
+        final Registry registry = mRegistry;
+        spec = resolveResourceSpec(res, resId, value);
+        synchronized (mResolutionLock) {
+            // result is stale if interceptors changed while resolving
+            if (registry == mRegistry) {
+                cacheResourceSpec(assets, resId, spec != null ? spec : NOT_INTERCEPTED);
+            }
+        }
+        return spec;
+    }
+
+    private static AssetTable findAssetTable(AssetTable[] tables, AssetManager assets) {
+        for (AssetTable table : tables) {
+            if (table.assets.get() == assets) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    // Called with mResolutionLock held
+    private void cacheResourceSpec(AssetManager assets, int resId, ResourceSpec spec) {
+        AssetTable table = findAssetTable(mResolutionCache, assets);
+        if (table == null) {
+            // drop tables of asset managers that are gone
+            List<AssetTable> tables = new ArrayList<>();
+            for (AssetTable t : mResolutionCache) {
+                if (t.assets.get() != null) {
+                    tables.add(t);
+                }
+            }
+            table = new AssetTable(assets);
+            tables.add(table);
+            mResolutionCache = tables.toArray(new AssetTable[0]);
         }
+        SparseArray<ResourceSpec> specs = table.specs.clone();
+        specs.put(resId, spec);
+        table.specs = specs;
+    }
+
+    private ResourceSpec resolveResourceSpec(Resources res, int resId, Object value) {
+        String pkgName = getResourcePackageName(res, resId);
+        if (pkgName == null) return null;
 
         String resName = getResourceEntryName(res, resId);
         if (resName == null) return null;
@@ -214,7 +407,6 @@ public class ResourceProxy {
 
         ResourceSpec spec = new ResourceSpec(i, resId, resName, value);
         if (DEBUG) log("New " + spec.toString());
-        sCache.put(cacheKey, spec);
         return spec;
     }
 
@@ -34,6 +34,7 @@ package com.ceco.q.gravitybox;
 
 import android.annotation.SuppressLint;
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
@@ -44,6 +45,7 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
 import android.util.Log;
@@ -53,24 +55,32 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class ScreenRecordingService extends Service {
     private static final String TAG = "GB:ScreenRecordingService";
 
     private static final int SCREENRECORD_NOTIFICATION_ID = 3;
+    private static final int SCREENRECORD_SAVE_NOTIFICATION_ID = 4;
     private static final int MSG_TASK_ENDED = 1;
     private static final int MSG_TASK_ERROR = 2;
     private static final String TMP_PATH = Environment.getExternalStorageDirectory() + "/__tmp_screenrecord.mp4";
+    // how long screenrecord gets to finalize the file after being asked to stop
+    private static final long STOP_TIMEOUT_MS = 5000;
+    private static final long LOG_READER_JOIN_TIMEOUT_MS = 1000;
+    private static final long SAVE_RESULT_NOTIFICATION_TIMEOUT_MS = 5000;
 
     public static final String ACTION_SCREEN_RECORDING_START = "gravitybox.intent.action.SCREEN_RECORDING_START";
     public static final String ACTION_SCREEN_RECORDING_STOP = "gravitybox.intent.action.SCREEN_RECORDING_STOP";
@@ -93,6 +103,10 @@ public class ScreenRecordingService extends Service {
     private boolean mUseStockBinary;
 
     private CaptureThread mCaptureThread;
+    private NotificationManager mNotifManager;
+    // moves finished recordings to their destination off the main thread
+    private final ExecutorService mSaveExecutor = Executors.newSingleThreadExecutor();
+    private boolean mDestroyed;
 
     private class CaptureThread extends Thread {
         public void run() {
@@ -135,30 +149,33 @@ public class ScreenRecordingService extends Service {
                 final int pid = fieldPid.getInt(proc);
                 Log.d(TAG, "Screenrecord PID = " + pid);
 
-                BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-
-                while (!isInterrupted()) {
-                    if (br.ready()) {
-                        Log.d(TAG, br.readLine());
-                    }
-
-                    try {
-                        int code = proc.exitValue();
-
-                        // If the recording is still running, we won't reach here,
-                        // but will land in the catch block below.
-                        Message msg = Message.obtain(mHandler, MSG_TASK_ENDED, code, 0, null);
-                        mHandler.sendMessage(msg);
-
-                        // No need to stop the process, so we can exit this method early
-                        return;
-                    } catch (IllegalThreadStateException ignore) {
-                        // ignored
+                // Drain process output on its own thread so this one can block on the process
+                Thread logReader = new Thread(() -> {
+                    try (BufferedReader br = new BufferedReader(
+                            new InputStreamReader(proc.getInputStream()))) {
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            Log.d(TAG, line);
+                        }
+                    } catch (IOException ignore) {
+                        // stream closed
                     }
+                }, TAG + ":log");
+                logReader.start();
+
+                int code;
+                try {
+                    // Blocks until screenrecord reaches its time limit or we get interrupted
+                    code = proc.waitFor();
+                } catch (InterruptedException e) {
+                    // Terminate the recording process and let it finalize the file
+                    Runtime.getRuntime().exec(new String[]{ "kill", "-2", String.valueOf(pid) });
+                    code = waitForExit(proc);
                 }
+                joinQuietly(logReader);
 
-                // Terminate the recording process
-                Runtime.getRuntime().exec(new String[]{ "kill", "-2", String.valueOf(pid) });
+                Message msg = Message.obtain(mHandler, MSG_TASK_ENDED, code, 0, null);
+                mHandler.sendMessage(msg);
             } catch (IOException | NoSuchFieldException | IllegalAccessException |
                      IllegalArgumentException | ClassNotFoundException e) {
                 // Notify something went wrong
@@ -171,6 +188,40 @@ public class ScreenRecordingService extends Service {
         }
     }
 
+    private static int waitForExit(Process proc) {
+        boolean interrupted = false;
+        long remaining = STOP_TIMEOUT_MS;
+        final long deadline = SystemClock.elapsedRealtime() + STOP_TIMEOUT_MS;
+        try {
+            while (remaining > 0) {
+                try {
+                    if (proc.waitFor(remaining, TimeUnit.MILLISECONDS)) {
+                        return proc.exitValue();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    remaining = deadline - SystemClock.elapsedRealtime();
+                }
+            }
+            Log.e(TAG, "screenrecord did not stop in time; destroying it");
+            proc.destroy();
+            return -1;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join(LOG_READER_JOIN_TIMEOUT_MS);
+        } catch (InterruptedException ignore) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -182,13 +233,18 @@ public class ScreenRecordingService extends Service {
         super.onCreate();
 
         mPrefs = SettingsManager.getInstance(this).getMainPrefs();
+        mNotifManager = getSystemService(NotificationManager.class);
 
         mHandler = new Handler() {
             public void handleMessage(Message msg) {
                 if (msg.what == MSG_TASK_ENDED) {
-                    // The screenrecord process stopped, act as if user
-                    // requested the record to stop.
-                    stopScreenrecord();
+                    // The screenrecord process stopped either on its own
+                    // or as requested and the file is complete.
+                    if (isRecording()) {
+                        updateStatus(STATUS_PROCESSING);
+                    }
+                    mCaptureThread = null;
+                    saveRecording();
                 } else if (msg.what == MSG_TASK_ERROR) {
                     mCaptureThread = null;
                     updateStatus(STATUS_ERROR, (String) msg.obj);
@@ -252,6 +308,11 @@ public class ScreenRecordingService extends Service {
         if (isRecording()) {
             stopScreenrecord();
         }
+        mDestroyed = true;
+        // recording being finished still needs the executor; it gets shut down once saved
+        if (!isProcessing()) {
+            mSaveExecutor.shutdown();
+        }
         super.onDestroy();
     }
 
@@ -270,6 +331,9 @@ public class ScreenRecordingService extends Service {
 
     private void updateStatus(int status, String message) {
         mRecordingStatus = status;
+        if (mDestroyed && !isRecording() && !isProcessing()) {
+            mSaveExecutor.shutdown();
+        }
         if (isRecording()) {
             startForeground(SCREENRECORD_NOTIFICATION_ID, mRecordingNotif);
         } else {
@@ -365,85 +429,113 @@ public class ScreenRecordingService extends Service {
 
         updateStatus(STATUS_PROCESSING);
 
+        // Capture thread stops screenrecord, waits for it to finish
+        // the file and reports back with MSG_TASK_ENDED
         try {
             mCaptureThread.interrupt();
         } catch (Exception e) { /* ignore */ }
+    }
 
-        // Wait a bit for capture thread to finish
-        while (mCaptureThread.isAlive()) {
-            // wait...
-        }
-
-        // Give a second to screenrecord to process the file
-        mHandler.postDelayed(() -> {
-            mCaptureThread = null;
-
-            String fileName = "SCR_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".mp4";
+    private void saveRecording() {
+        String fileName = "SCR_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".mp4";
 
-            File picturesDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-            if (!picturesDir.exists()) {
-                if (!picturesDir.mkdir()) {
-                    Log.e(TAG, "Cannot create Pictures directory");
-                    return;
-                }
+        File picturesDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        if (!picturesDir.exists()) {
+            if (!picturesDir.mkdir()) {
+                Log.e(TAG, "Cannot create Pictures directory");
+                return;
             }
+        }
 
-            File screenrecord = new File(picturesDir, "Screenrecord");
-            if (!screenrecord.exists()) {
-                if (!screenrecord.mkdir()) {
-                    Log.e(TAG, "Cannot create Screenrecord directory");
-                    return;
-                }
+        File screenrecord = new File(picturesDir, "Screenrecord");
+        if (!screenrecord.exists()) {
+            if (!screenrecord.mkdir()) {
+                Log.e(TAG, "Cannot create Screenrecord directory");
+                return;
             }
+        }
 
-            File input = new File(TMP_PATH);
-            final File output = new File(screenrecord, fileName);
+        final File input = new File(TMP_PATH);
+        final File output = new File(screenrecord, fileName);
 
-            Log.d(TAG, "Copying file to " + output.getAbsolutePath());
+        showSaveNotification(0, null);
+        final Runnable saveTask = () -> {
+            final boolean saved = moveFile(input, output);
+            mHandler.post(() -> onRecordingSaved(output, saved));
+        };
+        try {
+            mSaveExecutor.execute(saveTask);
+        } catch (RejectedExecutionException e) {
+            // should not happen; never lose the recording because of it though
+            new Thread(saveTask).start();
+        }
+    }
 
-            try {
-                copyFileUsingStream(input, output);
-                input.delete();
-                Toast.makeText(ScreenRecordingService.this,
-                        String.format(getString(R.string.screenrecord_toast_saved),
-                                output.getPath()), Toast.LENGTH_SHORT).show();
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to copy output file", e);
-                Toast.makeText(ScreenRecordingService.this,
-                        R.string.screenrecord_toast_save_error, Toast.LENGTH_SHORT).show();
-            }
+    // Runs on save executor
+    private boolean moveFile(File input, File output) {
+        // Both usually live on the same storage so the file can be just relinked
+        if (input.renameTo(output)) {
+            Log.d(TAG, "File moved to " + output.getAbsolutePath());
+            return true;
+        }
+
+        Log.d(TAG, "Copying file to " + output.getAbsolutePath());
+        try (FileChannel in = new FileInputStream(input).getChannel();
+             FileChannel out = new FileOutputStream(output).getChannel()) {
+            Utils.transferFile(in, out, percent ->
+                    mHandler.post(() -> showSaveNotification(percent, null)));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to copy output file", e);
+            output.delete();
+            return false;
+        }
+        input.delete();
+        return true;
+    }
+
+    private void onRecordingSaved(File output, boolean saved) {
+        if (saved) {
+            String message = String.format(getString(R.string.screenrecord_toast_saved),
+                    output.getPath());
+            showSaveNotification(100, message);
+            Toast.makeText(ScreenRecordingService.this, message, Toast.LENGTH_SHORT).show();
 
             // Make it appear in gallery, run MediaScanner
             MediaScannerConnection.scanFile(ScreenRecordingService.this,
                 new String[] { output.getAbsolutePath() }, null,
                     (path, uri) -> Log.i(TAG, "MediaScanner done scanning " + path));
+        } else {
+            showSaveNotification(100, getString(R.string.screenrecord_toast_save_error));
+            Toast.makeText(ScreenRecordingService.this,
+                    R.string.screenrecord_toast_save_error, Toast.LENGTH_SHORT).show();
+        }
 
-            updateStatus(STATUS_IDLE);
-        }, 3000);
+        updateStatus(STATUS_IDLE);
     }
 
-    private String getBinaryPath() {
-        return (mUseStockBinary ? "/system/bin/screenrecord" : Utils.getFilesDir(this) + "/screenrecord");
+    /**
+     * Shows progress of saving the recording or the result once finished
+     * @param result - null while saving is in progress
+     */
+    private void showSaveNotification(int percent, String result) {
+        Notification.Builder builder = new Notification.Builder(this,
+                GravityBoxApplication.NOTIF_CHANNEL_SERVICES)
+            .setContentTitle(getString(R.string.screenrecord_notif_title))
+            .setSmallIcon(R.drawable.ic_sysbar_camera)
+            .setOnlyAlertOnce(true);
+        if (result == null) {
+            builder.setContentText(getString(R.string.screenrecord_notif_saving))
+                .setProgress(100, percent, percent == 0)
+                .setOngoing(true);
+        } else {
+            builder.setContentText(result)
+                .setAutoCancel(true)
+                .setTimeoutAfter(SAVE_RESULT_NOTIFICATION_TIMEOUT_MS);
+        }
+        mNotifManager.notify(SCREENRECORD_SAVE_NOTIFICATION_ID, builder.build());
     }
 
-    private static void copyFileUsingStream(File source, File dest) throws IOException {
-        InputStream is = null;
-        OutputStream os = null;
-        try {
-            is = new FileInputStream(source);
-            os = new FileOutputStream(dest);
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = is.read(buffer)) > 0) {
-                os.write(buffer, 0, length);
-            }
-        } finally {
-            if (is != null) {
-                is.close();
-            }
-            if (os != null) {
-                os.close();
-            }
-        }
+    private String getBinaryPath() {
+        return (mUseStockBinary ? "/system/bin/screenrecord" : Utils.getFilesDir(this) + "/screenrecord");
     }
 }
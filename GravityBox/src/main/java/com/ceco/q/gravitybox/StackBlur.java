@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+/**
+ * Stack blur of ARGB pixels (algorithm by Mario Klingemann).
+ * Approximates gaussian blur with a triangle filter applied horizontally and vertically.
+ * Works in place on plain int array and does not depend on Android framework.
+ */
+public final class StackBlur {
+
+    private StackBlur() { }
+
+    /**
+     * Blurs pixels in place
+     * @param pixels - ARGB pixels, row by row
+     * @param width - image width
+     * @param height - image height
+     * @param radius - blur radius in pixels; values below 1 leave pixels untouched
+     */
+    public static void blur(int[] pixels, int width, int height, int radius) {
+        if (radius < 1 || width < 1 || height < 1) return;
+
+        final int[] stack = new int[2 * radius + 1];
+        for (int y = 0; y < height; y++) {
+            blurLine(pixels, y * width, 1, width, radius, stack);
+        }
+        for (int x = 0; x < width; x++) {
+            blurLine(pixels, x, width, height, radius, stack);
+        }
+    }
+
+    private static void blurLine(int[] pix, int offset, int step, int len, int radius, int[] stack) {
+        final int div = stack.length;
+        final int divSum = (radius + 1) * (radius + 1);
+        final int last = len - 1;
+        int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
+        int inA = 0, inR = 0, inG = 0, inB = 0;
+        int outA = 0, outR = 0, outG = 0, outB = 0;
+
+        for (int i = -radius; i <= radius; i++) {
+            final int p = pix[offset + Math.min(Math.max(i, 0), last) * step];
+            stack[i + radius] = p;
+            final int weight = radius + 1 - Math.abs(i);
+            final int a = p >>> 24, r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+            sumA += a * weight;
+            sumR += r * weight;
+            sumG += g * weight;
+            sumB += b * weight;
+            if (i > 0) {
+                inA += a; inR += r; inG += g; inB += b;
+            } else {
+                outA += a; outR += r; outG += g; outB += b;
+            }
+        }
+
+        // pixels ahead of current position are read before being overwritten
+        // so the line can be processed in place
+        int stackPointer = radius;
+        for (int x = 0; x < len; x++) {
+            pix[offset + x * step] = (sumA / divSum) << 24 | (sumR / divSum) << 16 |
+                    (sumG / divSum) << 8 | (sumB / divSum);
+            // clamped read below would return just written pixel
+            if (x == last) break;
+
+            sumA -= outA; sumR -= outR; sumG -= outG; sumB -= outB;
+
+            final int stackStart = (stackPointer + radius + 1) % div;
+            int p = stack[stackStart];
+            outA -= p >>> 24; outR -= (p >> 16) & 0xff; outG -= (p >> 8) & 0xff; outB -= p & 0xff;
+
+            p = pix[offset + Math.min(x + radius + 1, last) * step];
+            stack[stackStart] = p;
+            inA += p >>> 24; inR += (p >> 16) & 0xff; inG += (p >> 8) & 0xff; inB += p & 0xff;
+            sumA += inA; sumR += inR; sumG += inG; sumB += inB;
+
+            stackPointer = (stackPointer + 1) % div;
+            p = stack[stackPointer];
+            final int a = p >>> 24, r = (p >> 16) & 0xff, g = (p >> 8) & 0xff, b = p & 0xff;
+            outA += a; outR += r; outG += g; outB += b;
+            inA -= a; inR -= r; inG -= g; inB -= b;
+        }
+    }
+}
@@ -89,13 +89,14 @@ public class StatusbarBatteryPercentage implements IconManagerListener, BatteryS
         mPercentage = null;
     }
 
-    private void initPreferences(XSharedPreferences prefs) {
-        setTextSize(Integer.valueOf(prefs.getString(
-                GravityBoxSettings.PREF_KEY_BATTERY_PERCENT_TEXT_SIZE, "16")));
+    private void initPreferences(XSharedPreferences xprefs) {
+        PrefsSnapshot prefs = PrefsSnapshot.of(xprefs);
+        setTextSize(prefs.getIntFromString(
+                GravityBoxSettings.PREF_KEY_BATTERY_PERCENT_TEXT_SIZE, 16));
         setPercentSign(prefs.getString(
                 GravityBoxSettings.PREF_KEY_BATTERY_PERCENT_TEXT_STYLE, "%"));
-        setChargingStyle(Integer.valueOf(prefs.getString(
-                GravityBoxSettings.PREF_KEY_BATTERY_PERCENT_TEXT_CHARGING, "0")));
+        setChargingStyle(prefs.getIntFromString(
+                GravityBoxSettings.PREF_KEY_BATTERY_PERCENT_TEXT_CHARGING, 0));
         setChargingColor(prefs.getInt(
                 GravityBoxSettings.PREF_KEY_BATTERY_PERCENT_TEXT_CHARGING_COLOR, Color.GREEN));
     }
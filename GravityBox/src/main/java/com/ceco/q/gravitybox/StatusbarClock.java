@@ -14,14 +14,10 @@
  */
 package com.ceco.q.gravitybox;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 
 import de.robv.android.xposed.XC_MethodHook;
 import de.robv.android.xposed.XC_MethodHook.Unhook;
@@ -29,13 +25,13 @@ import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.SystemClock;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.SpannedString;
 import android.text.format.DateFormat;
 import android.text.style.RelativeSizeSpan;
 import android.view.Display;
@@ -55,15 +51,18 @@ public class StatusbarClock implements BroadcastMediator.Receiver {
     public enum ClockPosition { DEFAULT, LEFT, RIGHT, CENTER }
 
     private TextView mClock;
-    private boolean mAmPmHide;
-    private String mClockShowDate;
-    private int mClockShowDow;
     private boolean mClockHidden;
     private float mDowSize;
     private float mAmPmSize;
     private boolean mShowSeconds;
-    private SimpleDateFormat mSecondsFormat;
     private Handler mSecondsHandler;
+
+    // Formatting state reused across getSmallTime() calls, accessed from UI thread only
+    private final StatusbarClockFormatter mFormatter = new StatusbarClockFormatter(
+            (locale, is24) -> DateFormat.getBestDateTimePattern(locale, is24 ? "Hms" : "hms"));
+    private final SpannableStringBuilder mClockText = new SpannableStringBuilder();
+    private RelativeSizeSpan mDowSpan;
+    private RelativeSizeSpan mAmPmSpan;
     private List<Unhook> mHooks = new ArrayList<>();
     private Map<ClockPosition, ClockPositionInfo> mPositions;
     private ClockPosition mCurrentPosition = ClockPosition.DEFAULT;
@@ -88,10 +87,10 @@ public class StatusbarClock implements BroadcastMediator.Receiver {
     }
 
     public StatusbarClock(XSharedPreferences prefs) {
-        mClockShowDate = prefs.getString(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_DATE, "disabled");
-        mClockShowDow = Integer.valueOf(
-                prefs.getString(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_DOW, "0"));
-        mAmPmHide = prefs.getBoolean(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_AMPM_HIDE, false);
+        mFormatter.setShowDate(prefs.getString(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_DATE, "disabled"));
+        mFormatter.setShowDow(Integer.valueOf(
+                prefs.getString(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_DOW, "0")));
+        mFormatter.setAmPmHide(prefs.getBoolean(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_AMPM_HIDE, false));
         mClockHidden = prefs.getBoolean(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_HIDE, false);
         mDowSize = prefs.getInt(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_DOW_SIZE, 70) / 100f;
         mAmPmSize = prefs.getInt(GravityBoxSettings.PREF_KEY_STATUSBAR_CLOCK_AMPM_SIZE, 70) / 100f;
@@ -236,12 +235,11 @@ public class StatusbarClock implements BroadcastMediator.Receiver {
     private void hookGetSmallTime() {
         try {
             mHooks.add(XposedHelpers.findAndHookMethod(mClock.getClass(), "getSmallTime", new XC_MethodHook() {
-                @SuppressLint("SimpleDateFormat")
                 @Override
                 protected void afterHookedMethod(MethodHookParam param) {
                     // is this a status bar Clock instance?
                     // yes, if it contains our additional sbClock field
-                    if (DEBUG) log("getSmallTime() called. mAmPmHide=" + mAmPmHide);
+                    if (DEBUG) log("getSmallTime() called");
                     Object sbClock = XposedHelpers.getAdditionalInstanceField(param.thisObject, "sbClock");
                     if (DEBUG) log("Is statusbar clock: " + (sbClock == null ? "false" : "true"));
                     // hide and finish if sb clock hidden
@@ -251,73 +249,7 @@ public class StatusbarClock implements BroadcastMediator.Receiver {
                         }
                         return;
                     }
-                    Calendar calendar = Calendar.getInstance(TimeZone.getDefault());
-                    boolean is24 = DateFormat.is24HourFormat(mClock.getContext());
-                    String clockText = param.getResult().toString();
-                    if (DEBUG) log("Original clockText: '" + clockText + "'");
-                    // generate fresh base time text if seconds enabled
-                    if (mShowSeconds && sbClock != null) {
-                        if (mSecondsFormat == null) {
-                            mSecondsFormat = new SimpleDateFormat(
-                                    DateFormat.getBestDateTimePattern(
-                                    Locale.getDefault(), is24 ? "Hms" : "hms"));
-                        }
-                        clockText = mSecondsFormat.format(calendar.getTime());
-                        if (DEBUG) log("New clock text with seconds: " + clockText);
-                    }
-                    String amPm = calendar.getDisplayName(
-                            Calendar.AM_PM, Calendar.SHORT, Locale.getDefault());
-                    if (DEBUG) log("Locale specific AM/PM string: '" + amPm + "'");
-                    int amPmIndex = clockText.indexOf(amPm);
-                    if (DEBUG) log("Original AM/PM index: " + amPmIndex);
-                    if (mAmPmHide && amPmIndex != -1) {
-                        clockText = clockText.replace(amPm, "").trim();
-                        if (DEBUG) log("AM/PM removed. New clockText: '" + clockText + "'");
-                        amPmIndex = -1;
-                    } else if (!mAmPmHide && !is24 && amPmIndex == -1) {
-                        // insert AM/PM if missing
-                        if(Locale.getDefault().equals(Locale.TAIWAN) || Locale.getDefault().equals(Locale.CHINA)) {
-                            clockText = amPm + " " + clockText;
-                        } else {
-                            clockText += " " + amPm;
-                        }
-                        amPmIndex = clockText.indexOf(amPm);
-                        if (DEBUG) log("AM/PM added. New clockText: '" + clockText + "'; New AM/PM index: " + amPmIndex);
-                    }
-                    CharSequence date = "";
-                    // apply date to statusbar clock, not the notification panel clock
-                    if (!mClockShowDate.equals("disabled") && sbClock != null) {
-                        SimpleDateFormat df = (SimpleDateFormat) SimpleDateFormat.getDateInstance(SimpleDateFormat.SHORT);
-                        String pattern = mClockShowDate.equals("localized") ?
-                                df.toLocalizedPattern().replaceAll(".?[Yy].?", "") : mClockShowDate;
-                        date = new SimpleDateFormat(pattern, Locale.getDefault()).format(calendar.getTime()) + " ";
-                    }
-                    clockText = date + clockText;
-                    CharSequence dow = "";
-                    // apply day of week only to statusbar clock, not the notification panel clock
-                    if (mClockShowDow != GravityBoxSettings.DOW_DISABLED && sbClock != null) {
-                        dow = getFormattedDow(calendar.getDisplayName(
-                                Calendar.DAY_OF_WEEK, Calendar.SHORT, Locale.getDefault())) + " ";
-                    }
-                    clockText = dow + clockText;
-                    SpannableStringBuilder sb = new SpannableStringBuilder(clockText);
-                    sb.setSpan(new RelativeSizeSpan(mDowSize), 0, dow.length() + date.length(),
-                            Spannable.SPAN_EXCLUSIVE_INCLUSIVE);
-                    if (amPmIndex > -1) {
-                        if(Locale.getDefault().equals(Locale.TAIWAN) || Locale.getDefault().equals(Locale.CHINA)) {
-                            sb.setSpan(new RelativeSizeSpan(mAmPmSize), dow.length() + date.length() + amPmIndex,
-                                    dow.length() + date.length() + amPmIndex + amPm.length(),
-                                    Spannable.SPAN_EXCLUSIVE_INCLUSIVE);
-                        } else {
-                            int offset = Character.isWhitespace(clockText.charAt(dow.length() + date.length() + amPmIndex - 1)) ?
-                                    1 : 0;
-                            sb.setSpan(new RelativeSizeSpan(mAmPmSize), dow.length() + date.length() + amPmIndex - offset,
-                                    dow.length() + date.length() + amPmIndex + amPm.length(),
-                                    Spannable.SPAN_EXCLUSIVE_INCLUSIVE);
-                        }
-                    }
-                    if (DEBUG) log("Final clockText: '" + sb + "'");
-                    param.setResult(sb);
+                    param.setResult(formatClockText(param.getResult().toString(), sbClock != null));
                 }
             }));
         } catch (Throwable t) {
@@ -325,15 +257,35 @@ public class StatusbarClock implements BroadcastMediator.Receiver {
         }
     }
 
-    private String getFormattedDow(String inDow) {
-        switch (mClockShowDow) {
-            case GravityBoxSettings.DOW_LOWERCASE: 
-                return inDow.toLowerCase(Locale.getDefault());
-            case GravityBoxSettings.DOW_UPPERCASE:
-                return inDow.toUpperCase(Locale.getDefault());
-            case GravityBoxSettings.DOW_STANDARD:
-            default: return inDow;
+    private CharSequence formatClockText(String origText, boolean isSbClock) {
+        final boolean is24 = DateFormat.is24HourFormat(mClock.getContext());
+        if (DEBUG) log("Original clockText: '" + origText + "'");
+
+        // apply day of week and date only to statusbar clock, not the notification panel clock
+        final CharSequence text = mFormatter.format(System.currentTimeMillis(), origText,
+                isSbClock, mShowSeconds && isSbClock, is24);
+        final SpannableStringBuilder sb = mClockText;
+        sb.clearSpans();
+        sb.clear();
+        sb.append(text);
+
+        final int prefixLength = mFormatter.getPrefixLength();
+        if (prefixLength > 0) {
+            if (mDowSpan == null || mDowSpan.getSizeChange() != mDowSize) {
+                mDowSpan = new RelativeSizeSpan(mDowSize);
+            }
+            sb.setSpan(mDowSpan, 0, prefixLength, Spannable.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+        if (mFormatter.getAmPmStart() > -1) {
+            if (mAmPmSpan == null || mAmPmSpan.getSizeChange() != mAmPmSize) {
+                mAmPmSpan = new RelativeSizeSpan(mAmPmSize);
+            }
+            sb.setSpan(mAmPmSpan, mFormatter.getAmPmStart(), mFormatter.getAmPmEnd(),
+                    Spannable.SPAN_EXCLUSIVE_INCLUSIVE);
         }
+        if (DEBUG) log("Final clockText: '" + sb + "'");
+        // immutable copy; builder gets reused for next call
+        return new SpannedString(sb);
     }
 
     public void destroy() {
@@ -366,12 +318,12 @@ public class StatusbarClock implements BroadcastMediator.Receiver {
     public void onBroadcastReceived(Context context, Intent intent) {
         if (intent.getAction().equals(GravityBoxSettings.ACTION_PREF_CLOCK_CHANGED)) {
             if (intent.hasExtra(GravityBoxSettings.EXTRA_CLOCK_DOW)) {
-                mClockShowDow = intent.getIntExtra(GravityBoxSettings.EXTRA_CLOCK_DOW,
-                        GravityBoxSettings.DOW_DISABLED);
+                mFormatter.setShowDow(intent.getIntExtra(GravityBoxSettings.EXTRA_CLOCK_DOW,
+                        GravityBoxSettings.DOW_DISABLED));
                 updateClock();
             }
             if (intent.hasExtra(GravityBoxSettings.EXTRA_AMPM_HIDE)) {
-                mAmPmHide = intent.getBooleanExtra(GravityBoxSettings.EXTRA_AMPM_HIDE, false);
+                mFormatter.setAmPmHide(intent.getBooleanExtra(GravityBoxSettings.EXTRA_AMPM_HIDE, false));
                 updateClock();
             }
             if (intent.hasExtra(GravityBoxSettings.EXTRA_CLOCK_HIDE)) {
@@ -388,7 +340,7 @@ public class StatusbarClock implements BroadcastMediator.Receiver {
                 updateClock();
             }
             if (intent.hasExtra(GravityBoxSettings.EXTRA_CLOCK_DATE)) {
-                mClockShowDate = intent.getStringExtra(GravityBoxSettings.EXTRA_CLOCK_DATE);
+                mFormatter.setShowDate(intent.getStringExtra(GravityBoxSettings.EXTRA_CLOCK_DATE));
                 updateClock();
             }
             if (intent.hasExtra(GravityBoxSettings.EXTRA_CLOCK_SHOW_SECONDS)) {
@@ -410,7 +362,7 @@ public class StatusbarClock implements BroadcastMediator.Receiver {
         if (intent.getAction().equals(Intent.ACTION_CONFIGURATION_CHANGED) ||
             intent.getAction().equals(Intent.ACTION_TIME_CHANGED) ||
             intent.getAction().equals(Intent.ACTION_TIMEZONE_CHANGED)) {
-            mSecondsFormat = null;
+            mFormatter.invalidate();
         }
     }
 }
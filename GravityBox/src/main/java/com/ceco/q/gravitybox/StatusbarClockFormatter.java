@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ceco.q.gravitybox;
+
+import java.text.DateFormatSymbols;
+import java.text.DecimalFormatSymbols;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Builds status bar clock text with optional day of week, date and seconds
+ * and locates parts that get resized (date prefix and AM/PM).
+ * Formatting state is reused across calls so that clock ticks within the same
+ * minute do not allocate. Not thread safe; text returned by format() is valid
+ * until next call.
+ */
+public class StatusbarClockFormatter {
+
+    public interface TimePatternProvider {
+        /**
+         * @return best time pattern including seconds for given locale
+         */
+        String getSecondsPattern(Locale locale, boolean is24);
+    }
+
+    private final TimePatternProvider mPatternProvider;
+    private boolean mAmPmHide;
+    private String mShowDate = "disabled";
+    private int mShowDow = GravityBoxSettings.DOW_DISABLED;
+
+    private final StringBuilder mText = new StringBuilder();
+    private int mPrefixLength;
+    private int mAmPmStart = -1;
+    private int mAmPmEnd = -1;
+
+    private Calendar mCalendar;
+    private final Date mDate = new Date();
+    private Locale mLocale;
+    private String[] mAmPmStrings;
+    private boolean mAmPmFirst;
+    private char mZeroDigit;
+    private SimpleDateFormat mDateFormat;
+    private String mDatePrefix;
+    private int mDatePrefixDay;
+    private SimpleDateFormat mSecondsFormat;
+    private boolean mSecondsFormatIs24;
+    private final StringBuffer mSecondsText = new StringBuffer();
+    private final FieldPosition mSecondsField = new FieldPosition(java.text.DateFormat.SECOND_FIELD);
+    private long mSecondsTextMinute = -1;
+
+    public StatusbarClockFormatter(TimePatternProvider patternProvider) {
+        mPatternProvider = patternProvider;
+    }
+
+    public void setAmPmHide(boolean hide) {
+        mAmPmHide = hide;
+    }
+
+    /**
+     * @param showDate - date pattern, "localized" or "disabled"
+     */
+    public void setShowDate(String showDate) {
+        mShowDate = showDate;
+        mDateFormat = null;
+        mDatePrefix = null;
+    }
+
+    public void setShowDow(int showDow) {
+        mShowDow = showDow;
+        mDatePrefix = null;
+    }
+
+    /**
+     * Drops cached formats, e.g. after time, time zone or configuration change
+     */
+    public void invalidate() {
+        mCalendar = null;
+        mDateFormat = null;
+        mDatePrefix = null;
+        mSecondsFormat = null;
+    }
+
+    /**
+     * @param now - time to format
+     * @param origText - time text as produced by system clock
+     * @param withPrefix - whether to prepend day of week and date
+     * @param withSeconds - whether to replace time text with one including seconds
+     * @param is24 - whether 24 hour format is in use
+     * @return clock text valid until next call
+     */
+    public CharSequence format(long now, String origText, boolean withPrefix,
+                               boolean withSeconds, boolean is24) {
+        final Locale locale = Locale.getDefault();
+        if (!locale.equals(mLocale)) {
+            onLocaleChanged(locale);
+        }
+        if (mCalendar == null) {
+            mCalendar = Calendar.getInstance(TimeZone.getDefault());
+        }
+        mCalendar.setTimeInMillis(now);
+
+        final StringBuilder sb = mText;
+        sb.setLength(0);
+        if (withPrefix) {
+            sb.append(getDatePrefix());
+        }
+        final int prefixLength = sb.length();
+
+        // generate fresh base time text if seconds enabled
+        if (withSeconds) {
+            sb.append(getTimeWithSeconds(is24));
+        } else {
+            sb.append(origText);
+        }
+
+        final String amPm = mAmPmStrings[mCalendar.get(Calendar.AM_PM)];
+        int amPmIndex = sb.indexOf(amPm, prefixLength);
+        if (mAmPmHide && amPmIndex != -1) {
+            sb.delete(amPmIndex, amPmIndex + amPm.length());
+            trimTime(sb, prefixLength);
+            amPmIndex = -1;
+        } else if (!mAmPmHide && !is24 && amPmIndex == -1) {
+            // insert AM/PM if missing
+            if (mAmPmFirst) {
+                sb.insert(prefixLength, ' ');
+                sb.insert(prefixLength, amPm);
+                amPmIndex = prefixLength;
+            } else {
+                sb.append(' ').append(amPm);
+                amPmIndex = sb.length() - amPm.length();
+            }
+        }
+
+        mPrefixLength = prefixLength;
+        if (amPmIndex > -1) {
+            // include space preceding AM/PM
+            mAmPmStart = (!mAmPmFirst && amPmIndex > 0 &&
+                    Character.isWhitespace(sb.charAt(amPmIndex - 1)) ? amPmIndex - 1 : amPmIndex);
+            mAmPmEnd = amPmIndex + amPm.length();
+        } else {
+            mAmPmStart = mAmPmEnd = -1;
+        }
+        return sb;
+    }
+
+    /**
+     * @return length of day of week and date part of last formatted text
+     */
+    public int getPrefixLength() {
+        return mPrefixLength;
+    }
+
+    /**
+     * @return start of AM/PM part of last formatted text or -1 if there is none
+     */
+    public int getAmPmStart() {
+        return mAmPmStart;
+    }
+
+    /**
+     * @return end of AM/PM part of last formatted text or -1 if there is none
+     */
+    public int getAmPmEnd() {
+        return mAmPmEnd;
+    }
+
+    private void onLocaleChanged(Locale locale) {
+        mLocale = locale;
+        mAmPmStrings = DateFormatSymbols.getInstance(locale).getAmPmStrings();
+        mAmPmFirst = locale.equals(Locale.TAIWAN) || locale.equals(Locale.CHINA);
+        mZeroDigit = DecimalFormatSymbols.getInstance(locale).getZeroDigit();
+        mDateFormat = null;
+        mDatePrefix = null;
+        mSecondsFormat = null;
+    }
+
+    private static void trimTime(StringBuilder sb, int start) {
+        int end = sb.length();
+        while (end > start && sb.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        sb.setLength(end);
+        int pos = start;
+        while (pos < end && sb.charAt(pos) <= ' ') {
+            pos++;
+        }
+        sb.delete(start, pos);
+    }
+
+    /**
+     * Returns day of week and date part including trailing spaces.
+     * Gets rebuilt only when day changes or related settings change.
+     */
+    private String getDatePrefix() {
+        final int day = mCalendar.get(Calendar.YEAR) * 1000 + mCalendar.get(Calendar.DAY_OF_YEAR);
+        if (mDatePrefix != null && day == mDatePrefixDay) {
+            return mDatePrefix;
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        if (mShowDow != GravityBoxSettings.DOW_DISABLED) {
+            prefix.append(getFormattedDow(mCalendar.getDisplayName(
+                    Calendar.DAY_OF_WEEK, Calendar.SHORT, mLocale))).append(' ');
+        }
+        if (!mShowDate.equals("disabled")) {
+            if (mDateFormat == null) {
+                String pattern = mShowDate;
+                if (mShowDate.equals("localized")) {
+                    SimpleDateFormat df = (SimpleDateFormat) SimpleDateFormat.getDateInstance(
+                            SimpleDateFormat.SHORT, mLocale);
+                    pattern = df.toLocalizedPattern().replaceAll(".?[Yy].?", "");
+                }
+                mDateFormat = new SimpleDateFormat(pattern, mLocale);
+            }
+            mDate.setTime(mCalendar.getTimeInMillis());
+            prefix.append(mDateFormat.format(mDate)).append(' ');
+        }
+        mDatePrefix = prefix.toString();
+        mDatePrefixDay = day;
+        return mDatePrefix;
+    }
+
+    private String getFormattedDow(String inDow) {
+        switch (mShowDow) {
+            case GravityBoxSettings.DOW_LOWERCASE:
+                return inDow.toLowerCase(mLocale);
+            case GravityBoxSettings.DOW_UPPERCASE:
+                return inDow.toUpperCase(mLocale);
+            case GravityBoxSettings.DOW_STANDARD:
+            default: return inDow;
+        }
+    }
+
+    /**
+     * Returns time text including seconds. Full formatting happens once per minute,
+     * otherwise only seconds digits are rewritten in place.
+     */
+    private CharSequence getTimeWithSeconds(boolean is24) {
+        if (mSecondsFormat == null || mSecondsFormatIs24 != is24) {
+            mSecondsFormat = new SimpleDateFormat(
+                    mPatternProvider.getSecondsPattern(mLocale, is24), mLocale);
+            mSecondsFormatIs24 = is24;
+            mSecondsTextMinute = -1;
+        }
+        final int second = mCalendar.get(Calendar.SECOND);
+        final long now = mCalendar.getTimeInMillis();
+        final long minute = now - second * 1000L - mCalendar.get(Calendar.MILLISECOND);
+        final int secondsStart = mSecondsField.getBeginIndex();
+        if (minute == mSecondsTextMinute &&
+                mSecondsField.getEndIndex() - secondsStart == 2) {
+            mSecondsText.setCharAt(secondsStart, (char) (mZeroDigit + second / 10));
+            mSecondsText.setCharAt(secondsStart + 1, (char) (mZeroDigit + second % 10));
+        } else {
+            mSecondsText.setLength(0);
+            mDate.setTime(now);
+            mSecondsFormat.format(mDate, mSecondsText, mSecondsField);
+            mSecondsTextMinute = minute;
+        }
+        return mSecondsText;
+    }
+}
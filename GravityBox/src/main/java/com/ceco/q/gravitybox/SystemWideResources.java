@@ -16,6 +16,7 @@ package com.ceco.q.gravitybox;
 
 import android.content.Context;
 
+import com.ceco.q.gravitybox.managers.BroadcastMediator;
 import com.ceco.q.gravitybox.managers.SysUiTunerManager;
 import com.ceco.q.gravitybox.tuner.TunerMainActivity;
 
@@ -28,6 +29,14 @@ import de.robv.android.xposed.XSharedPreferences;
 class SystemWideResources {
     private static ResourceProxy sResourceProxy;
 
+    /**
+     * Makes resource proxy stats of this process dumpable with diagnostic broadcast
+     */
+    static void registerStatsDump(BroadcastMediator mediator) {
+        if (sResourceProxy == null || mediator == null) return;
+        mediator.addStatsDumper(sResourceProxy::dumpStats);
+    }
+
     static void initResources(final XSharedPreferences prefs, final XSharedPreferences tunerPrefs) {
         sResourceProxy = new ResourceProxy();
         List<String> resourceNames;
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Reusable char buffer for building traffic meter text without allocations.
+ * Numbers are written using fixed-point arithmetic.
+ * Not thread safe.
+ */
+public class TrafficFormatter {
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final char mDecimalSeparator;
+    private char[] mBuffer = new char[INITIAL_CAPACITY];
+    private int mLength;
+
+    public TrafficFormatter() {
+        this(DecimalFormatSymbols.getInstance().getDecimalSeparator());
+    }
+
+    TrafficFormatter(char decimalSeparator) {
+        mDecimalSeparator = decimalSeparator;
+    }
+
+    public TrafficFormatter reset() {
+        mLength = 0;
+        return this;
+    }
+
+    public TrafficFormatter append(char c) {
+        ensureCapacity(mLength + 1);
+        mBuffer[mLength++] = c;
+        return this;
+    }
+
+    public TrafficFormatter append(String s) {
+        final int len = s.length();
+        ensureCapacity(mLength + len);
+        s.getChars(0, len, mBuffer, mLength);
+        mLength += len;
+        return this;
+    }
+
+    /**
+     * Appends integer value
+     */
+    public TrafficFormatter append(long value) {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(mLength + digits);
+        for (int i = mLength + digits - 1; i >= mLength; i--) {
+            mBuffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        mLength += digits;
+        return this;
+    }
+
+    /**
+     * Appends value / divisor rounded half up to one fraction digit
+     * @param keepZeroFraction - whether to keep fraction digit when it is zero
+     */
+    public TrafficFormatter appendDecimal(long value, long divisor, boolean keepZeroFraction) {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        final long tenths = (value * 10 + divisor / 2) / divisor;
+        append(tenths / 10);
+        final int fraction = (int) (tenths % 10);
+        if (fraction != 0 || keepZeroFraction) {
+            append(mDecimalSeparator);
+            append((char) ('0' + fraction));
+        }
+        return this;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public boolean contentEquals(TrafficFormatter other) {
+        if (mLength != other.mLength) {
+            return false;
+        }
+        for (int i = 0; i < mLength; i++) {
+            if (mBuffer[i] != other.mBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void copyFrom(TrafficFormatter other) {
+        ensureCapacity(other.mLength);
+        System.arraycopy(other.mBuffer, 0, mBuffer, 0, other.mLength);
+        mLength = other.mLength;
+    }
+
+    /**
+     * Gives direct access to internal buffer e.g. for TextView.setText(char[], int, int).
+     * Valid content spans from 0 to length().
+     */
+    public char[] getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBuffer, 0, mLength);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            char[] buf = new char[Math.max(capacity, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buf, 0, mLength);
+            mBuffer = buf;
+        }
+    }
+}
@@ -19,42 +19,36 @@ package com.ceco.q.gravitybox;
 
 import android.content.Context;
 import android.content.Intent;
-import android.os.Handler;
-import android.os.SystemClock;
 import android.util.TypedValue;
 import android.view.View;
 
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-
-import de.robv.android.xposed.XSharedPreferences;
 
 public class TrafficMeter extends TrafficMeterAbstract {
     public static final int INACTIVITY_MODE_DEFAULT = 0;
     public static final int INACTIVITY_MODE_HIDDEN = 1;
     public static final int INACTIVITY_MODE_SUMMARY = 2;
 
-    boolean mTrafficMeterHide;
-    int mTrafficMeterSummaryTime;
+    // written on UI thread, read on sampling thread
+    volatile boolean mTrafficMeterHide;
+    volatile int mTrafficMeterSummaryTime;
     long mTotalRxBytes;
     long mLastUpdateTime;
     long mTrafficBurstStartTime;
     long mTrafficBurstStartBytes;
     long mKeepOnUntil = Long.MIN_VALUE;
+    // sample results handed over from sampling thread to UI thread
+    volatile boolean mVisible = true;
     String mB = "B";
     String mKB = "KB";
     String mMB = "MB";
     String mS = "s";
 
-    NumberFormat mDecimalFormat = new DecimalFormat("##0.0");
-    NumberFormat mIntegerFormat = NumberFormat.getIntegerInstance();
-
     public TrafficMeter(Context context) {
         super(context);
     }
 
     @Override
-    protected void onInitialize(XSharedPreferences prefs) throws Throwable {
+    protected void onInitialize(PrefsSnapshot prefs) throws Throwable {
         Context gbContext = Utils.getGbContext(getContext());
         mB = gbContext.getString(R.string.byte_abbr);
         mKB = gbContext.getString(R.string.kilobyte_abbr);
@@ -62,8 +56,8 @@ public class TrafficMeter extends TrafficMeterAbstract {
         mS = gbContext.getString(R.string.second_abbr);
 
         try {
-            int inactivityMode = Integer.valueOf(prefs.getString(
-                    GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_INACTIVITY_MODE, "0"));
+            int inactivityMode = prefs.getIntFromString(
+                    GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_INACTIVITY_MODE, 0);
             setInactivityMode(inactivityMode);
         } catch (NumberFormatException nfe) {
             log("Invalid preference value for PREF_KEY_DATA_TRAFFIC_INACTIVITY_MODE");
@@ -83,112 +77,114 @@ public class TrafficMeter extends TrafficMeterAbstract {
         }
     }
 
-    @Override
-    protected void startTrafficUpdates() {
-        mTotalRxBytes = getTotalRxTxBytes()[0];
-        mLastUpdateTime = SystemClock.elapsedRealtime();
-        mTrafficBurstStartTime = Long.MIN_VALUE;
-
-        getHandler().removeCallbacks(mRunnable);
-        getHandler().post(mRunnable);
+    private void formatTraffic(long bytes, boolean speed) {
+        synchronized (mTextBuilder) {
+            mTextBuilder.reset();
+            if (!speed) {
+                mTextBuilder.append('(');
+            }
+            if (bytes > 10485760) { // 1024 * 1024 * 10
+                mTextBuilder.append(bytes / 1048576).append(mMB);
+            } else if (bytes > 1048576) { // 1024 * 1024
+                mTextBuilder.appendDecimal(bytes, 1048576, true).append(mMB);
+            } else if (bytes > 10240) { // 1024 * 10
+                mTextBuilder.append(bytes / 1024).append(mKB);
+            } else if (bytes > 1024) { // 1024
+                mTextBuilder.appendDecimal(bytes, 1024, true).append(mKB);
+            } else {
+                mTextBuilder.append(bytes).append(mB);
+            }
+            if (speed) {
+                mTextBuilder.append('/').append(mS);
+            } else {
+                mTextBuilder.append(')');
+            }
+        }
     }
 
-    @Override
-    protected void stopTrafficUpdates() {
-        final Handler h = getHandler();
-        if (h != null && mRunnable != null) {
-            h.removeCallbacks(mRunnable);
+    private void clearText() {
+        synchronized (mTextBuilder) {
+            mTextBuilder.reset();
         }
     }
 
-    private String formatTraffic(long bytes, boolean speed) {
-        if (bytes > 10485760) { // 1024 * 1024 * 10
-            return (speed ? "" : "(")
-                    + mIntegerFormat.format(bytes / 1048576)
-                    + (speed ? mMB + "/" + mS : mMB + ")");
-        } else if (bytes > 1048576) { // 1024 * 1024
-            return (speed ? "" : "(")
-                    + mDecimalFormat.format(((float) bytes) / 1048576f)
-                    + (speed ? mMB + "/" + mS : mMB + ")");
-        } else if (bytes > 10240) { // 1024 * 10
-            return (speed ? "" : "(")
-                    + mIntegerFormat.format(bytes / 1024)
-                    + (speed ? mKB + "/" + mS : mKB + ")");
-        } else if (bytes > 1024) { // 1024
-            return (speed ? "" : "(")
-                    + mDecimalFormat.format(((float) bytes) / 1024f)
-                    + (speed ? mKB + "/" + mS : mKB + ")");
-        } else {
-            return (speed ? "" : "(")
-                    + mIntegerFormat.format(bytes)
-                    + (speed ? mB + "/" + mS : mB + ")");
-        }
+    @Override
+    public void onTrafficBaseline(long rxBytes, long txBytes, long timestamp) {
+        mTotalRxBytes = rxBytes;
+        mLastUpdateTime = timestamp;
+        mTrafficBurstStartTime = Long.MIN_VALUE;
+        clearText();
+        mVisible = true;
     }
 
-    Runnable mRunnable = new Runnable() {
-        @Override
-        public void run() {
-            long td = SystemClock.elapsedRealtime() - mLastUpdateTime;
+    @Override
+    public void onTrafficSampled(long rxBytes, long txBytes, long timestamp) {
+        long td = timestamp - mLastUpdateTime;
+
+        long currentRxBytes = rxBytes;
+        long newBytes = currentRxBytes - mTotalRxBytes;
+
+        boolean disconnected = false;
+        if (canReadFromFile() && newBytes < 0) {
+            // It's impossible to get a speed under 0
+            currentRxBytes = 0;
+            newBytes = 0;
+            disconnected = true;
+        }
 
-            if (!mAttached) {
-                return;
-            }
+        if (mTrafficMeterHide && newBytes == 0) {
+            long trafficBurstBytes = (canReadFromFile() && disconnected) ?
+                    mTotalRxBytes - mTrafficBurstStartBytes : 
+                        currentRxBytes - mTrafficBurstStartBytes;
 
-            long currentRxBytes = getTotalRxTxBytes()[0];
-            long newBytes = currentRxBytes - mTotalRxBytes;
+            if (trafficBurstBytes != 0 && mTrafficMeterSummaryTime != 0) {
+                formatTraffic(trafficBurstBytes, false);
 
-            boolean disconnected = false;
-            if (canReadFromFile() && newBytes < 0) {
-                // It's impossible to get a speed under 0
-                currentRxBytes = 0;
-                newBytes = 0;
-                disconnected = true;
+                if (DEBUG) log("Traffic burst ended: " + trafficBurstBytes + "B in "
+                                + (timestamp - mTrafficBurstStartTime)
+                                / 1000 + "s");
+                mKeepOnUntil = timestamp + mTrafficMeterSummaryTime;
+                mTrafficBurstStartTime = Long.MIN_VALUE;
+                mTrafficBurstStartBytes = currentRxBytes;
             }
-
-            if (mTrafficMeterHide && newBytes == 0) {
-                long trafficBurstBytes = (canReadFromFile() && disconnected) ?
-                        mTotalRxBytes - mTrafficBurstStartBytes : 
-                            currentRxBytes - mTrafficBurstStartBytes;
-
-                if (trafficBurstBytes != 0 && mTrafficMeterSummaryTime != 0) {
-                    setText(formatTraffic(trafficBurstBytes, false));
-
-                    if (DEBUG) log("Traffic burst ended: " + trafficBurstBytes + "B in "
-                                    + (SystemClock.elapsedRealtime() - mTrafficBurstStartTime)
-                                    / 1000 + "s");
-                    mKeepOnUntil = SystemClock.elapsedRealtime() + mTrafficMeterSummaryTime;
-                    mTrafficBurstStartTime = Long.MIN_VALUE;
-                    mTrafficBurstStartBytes = currentRxBytes;
-                }
-            } else {
-                if (mTrafficMeterHide && mTrafficBurstStartTime == Long.MIN_VALUE) {
-                    mTrafficBurstStartTime = mLastUpdateTime;
-                    mTrafficBurstStartBytes = mTotalRxBytes;
-                }
-                if (td > 0) {
-                    setText(formatTraffic(newBytes * 1000 / td, true));
-                }
+        } else {
+            if (mTrafficMeterHide && mTrafficBurstStartTime == Long.MIN_VALUE) {
+                mTrafficBurstStartTime = mLastUpdateTime;
+                mTrafficBurstStartBytes = mTotalRxBytes;
             }
+            if (td > 0) {
+                formatTraffic(newBytes * 1000 / td, true);
+            }
+        }
 
-            // Hide if there is no traffic
-            if (mTrafficMeterHide && newBytes == 0) {
-                if (getVisibility() != GONE
-                        && mKeepOnUntil < SystemClock.elapsedRealtime()) {
-                    setText("");
-                    setVisibility(View.GONE);
-                }
-            } else {
-                if (getVisibility() != VISIBLE) {
-                    setVisibility(View.VISIBLE);
-                }
+        // Hide if there is no traffic
+        if (mTrafficMeterHide && newBytes == 0) {
+            if (mVisible && mKeepOnUntil < timestamp) {
+                clearText();
+                mVisible = false;
             }
+        } else {
+            mVisible = true;
+        }
+
+        mTotalRxBytes = (canReadFromFile() && disconnected) ? 
+                mTotalRxBytes : currentRxBytes;
+        mLastUpdateTime = timestamp;
+        updateSamplingInterval(mTrafficMeterHide ? newBytes == 0 :
+                td > 0 && newBytes * 1000 / td < ADAPTIVE_IDLE_THRESHOLD);
+        postViewUpdate();
+    }
 
-            mTotalRxBytes = (canReadFromFile() && disconnected) ? 
-                    mTotalRxBytes : currentRxBytes;
-            mLastUpdateTime = SystemClock.elapsedRealtime();
-            getHandler().postDelayed(mRunnable, mInterval);
+    @Override
+    protected void onViewUpdate() {
+        if (isTextChanged()) {
+            applyText();
         }
-    };
+        final int visibility = mVisible ? View.VISIBLE : View.GONE;
+        if (getVisibility() != visibility) {
+            setVisibility(visibility);
+        }
+    }
 
     private void setInactivityMode(int mode) {
         switch (mode) {
@@ -16,11 +16,6 @@
 
 package com.ceco.q.gravitybox;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-
 import com.ceco.q.gravitybox.ProgressBarController.Mode;
 import com.ceco.q.gravitybox.ProgressBarController.ProgressInfo;
 import com.ceco.q.gravitybox.managers.BroadcastMediator;
@@ -35,7 +30,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.TrafficStats;
+import android.os.Handler;
+import android.os.Looper;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.TypedValue;
@@ -50,7 +46,8 @@ import de.robv.android.xposed.XposedBridge;
 @SuppressLint("AppCompatCustomView")
 public abstract class TrafficMeterAbstract extends TextView
                         implements BroadcastMediator.Receiver, IconManagerListener,
-                                   ProgressBarController.ProgressStateListener {
+                                   ProgressBarController.ProgressStateListener,
+                                   TrafficSamplingScheduler.Client {
     protected static final String PACKAGE_NAME = "com.android.systemui";
     protected static final String TAG = "GB:NetworkTraffic";
     protected static final boolean DEBUG = false;
@@ -61,7 +58,13 @@ public abstract class TrafficMeterAbstract extends TextView
 
     protected Context mGbContext;
     protected boolean mAttached;
+    protected static final int MAX_ADAPTIVE_INTERVAL = 8000;
+    protected static final int ADAPTIVE_IDLE_THRESHOLD = 1024; // B/s
+
     protected int mInterval = 1000;
+    // written on UI thread, read on sampling thread
+    protected volatile boolean mAdaptiveInterval;
+    private volatile int mSamplingInterval = mInterval;
     protected int mPosition;
     protected int mSize;
     protected int mMarginStartRight;
@@ -74,9 +77,16 @@ public abstract class TrafficMeterAbstract extends TextView
     protected boolean mShowOnlyForMobileData;
     protected boolean mIsTrackingProgress;
     protected boolean mAllowInLockscreen;
-    private Boolean mCanReadFromFile;
     private boolean mHiddenByPolicy;
     private boolean mHiddenByHeadsUp;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private boolean mTrafficUpdatesActive;
+    // text built on sampling thread; guarded by itself
+    protected final TrafficFormatter mTextBuilder = new TrafficFormatter();
+    // buffers handed over to TextView; alternated so the one in use is never modified
+    private final TrafficFormatter[] mShownText = new TrafficFormatter[] {
+            new TrafficFormatter(), new TrafficFormatter() };
+    private int mShownTextIdx;
 
     protected static void log(String message) {
         XposedBridge.log(TAG + ": " + message);
@@ -121,18 +131,18 @@ public abstract class TrafficMeterAbstract extends TextView
         }
     }
 
-    public void initialize(XSharedPreferences prefs) throws Throwable {
-        prefs.reload();
+    public void initialize(XSharedPreferences xprefs) throws Throwable {
+        PrefsSnapshot prefs = PrefsSnapshot.of(xprefs);
         try {
-            mSize = Integer.valueOf(prefs.getString(
-                    GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_SIZE, "14"));
+            mSize = prefs.getIntFromString(
+                    GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_SIZE, 14);
         } catch (NumberFormatException nfe) {
             GravityBox.log(TAG, "Invalid preference value for PREF_KEY_DATA_TRAFFIC_SIZE");
         }
 
         try {
-            setTrafficMeterPosition(Integer.valueOf(prefs.getString(
-                    GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_POSITION, "0")));
+            setTrafficMeterPosition(prefs.getIntFromString(
+                    GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_POSITION, 0));
         } catch (NumberFormatException nfe) {
             GravityBox.log(TAG, "Invalid preference value for PREF_KEY_DATA_TRAFFIC_POSITION");
         }
@@ -148,6 +158,12 @@ public abstract class TrafficMeterAbstract extends TextView
         mAllowInLockscreen = prefs.getBoolean(
                 GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_LOCKSCREEN, true);
 
+        mAdaptiveInterval = prefs.getBoolean(
+                GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_ADAPTIVE_INTERVAL, false);
+
+        TrafficSamplingScheduler.getInstance().setStatsCollectionEnabled(prefs.getBoolean(
+                GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_STATS, false));
+
         onInitialize(prefs);
     }
 
@@ -262,6 +278,14 @@ public abstract class TrafficMeterAbstract extends TextView
                 mAllowInLockscreen = intent.getBooleanExtra(
                         GravityBoxSettings.EXTRA_DT_LOCKSCREEN, false);
             }
+            if (intent.hasExtra(GravityBoxSettings.EXTRA_DT_ADAPTIVE_INTERVAL)) {
+                mAdaptiveInterval = intent.getBooleanExtra(
+                        GravityBoxSettings.EXTRA_DT_ADAPTIVE_INTERVAL, false);
+            }
+            if (intent.hasExtra(GravityBoxSettings.EXTRA_DT_STATS)) {
+                TrafficSamplingScheduler.getInstance().setStatsCollectionEnabled(
+                        intent.getBooleanExtra(GravityBoxSettings.EXTRA_DT_STATS, false));
+            }
 
             onPreferenceChanged(intent);
             updateState();
@@ -343,70 +367,86 @@ public abstract class TrafficMeterAbstract extends TextView
     @Override
     public void onProgressPreferencesChanged(Intent intent) { }
 
-    protected abstract void onInitialize(XSharedPreferences prefs) throws Throwable;
+    protected abstract void onInitialize(PrefsSnapshot prefs) throws Throwable;
     protected abstract void onPreferenceChanged(Intent intent);
-    protected abstract void startTrafficUpdates();
-    protected abstract void stopTrafficUpdates();
 
-    protected boolean canReadFromFile() {
-        if (mCanReadFromFile == null) {
-            File f = new File("/proc/net/xt_qtaguid/iface_stat_fmt");
-            mCanReadFromFile = (f.exists() && f.canRead());
+    /**
+     * Applies results of the last sample to the view; called on UI thread
+     */
+    protected abstract void onViewUpdate();
+
+    protected void startTrafficUpdates() {
+        mSamplingInterval = mInterval;
+        mTrafficUpdatesActive = true;
+        TrafficSamplingScheduler.getInstance().register(this);
+    }
+
+    protected void stopTrafficUpdates() {
+        mTrafficUpdatesActive = false;
+        TrafficSamplingScheduler.getInstance().unregister(this);
+        mUiHandler.removeCallbacks(mViewUpdateRunnable);
+        mShownText[0].reset();
+        mShownText[1].reset();
+    }
+
+    /**
+     * @return true if text built by sampling thread differs from the one shown; UI thread
+     */
+    protected boolean isTextChanged() {
+        synchronized (mTextBuilder) {
+            return !mShownText[mShownTextIdx].contentEquals(mTextBuilder);
         }
-        return mCanReadFromFile;
     }
 
-    protected long[] getTotalRxTxBytes() {
-        return (canReadFromFile() ? getTotalRxTxBytesFromFile() :
-            getTotalRxTxBytesFromStats());
+    /**
+     * Shows text built by sampling thread; UI thread
+     */
+    protected void applyText() {
+        final TrafficFormatter text;
+        synchronized (mTextBuilder) {
+            mShownTextIdx ^= 1;
+            text = mShownText[mShownTextIdx];
+            text.copyFrom(mTextBuilder);
+        }
+        setText(text.getBuffer(), 0, text.length());
     }
 
-    private static boolean isCountedInterface(String iface) {
-        return (iface != null &&
-                !iface.equals("ifname") &&
-                !iface.equals("lo") &&
-                !iface.startsWith("tun"));
+    /**
+     * Schedules view update on UI thread; safe to call from sampling thread
+     */
+    protected void postViewUpdate() {
+        mUiHandler.removeCallbacks(mViewUpdateRunnable);
+        mUiHandler.post(mViewUpdateRunnable);
     }
 
-    private static long tryParseLong(String obj) {
-        try {
-            return Long.parseLong(obj);
-        } catch (Exception e) {
-            return 0;
+    private final Runnable mViewUpdateRunnable = () -> {
+        // sample might have been delivered after updates were stopped
+        if (mTrafficUpdatesActive) {
+            onViewUpdate();
         }
+    };
+
+    @Override
+    public int getSamplingInterval() {
+        return mSamplingInterval;
     }
 
-    private static long[] getTotalRxTxBytesFromFile() {
-        String line;
-        String[] segs;
-        BufferedReader in = null;
-        long[] bytes = new long[] { 0, 0 };
-        try {
-            FileReader fr = new FileReader("/proc/net/xt_qtaguid/iface_stat_fmt");
-            in = new BufferedReader(fr);
-            while ((line = in.readLine()) != null) {
-                segs = line.split(" ");
-                if (segs.length < 4)
-                    throw new UnsupportedOperationException("Unsupported length of net params");
-
-                if (isCountedInterface(segs[0])) {
-                    if (DEBUG) log("iface:"+segs[0]+"; RX="+segs[1]+"; TX="+segs[3]);
-                    bytes[0] += tryParseLong(segs[1]);
-                    bytes[1] += tryParseLong(segs[3]);
-                }
-            }
-        } catch (Throwable t) {
-            GravityBox.log(TAG, t);
-            // fallback to TrafficStats
-            bytes = getTotalRxTxBytesFromStats();
-        } finally {
-            if (in != null) try { in.close(); } catch(IOException ignored) {}
+    /**
+     * Adjusts sampling interval based on the outcome of the last sample.
+     * In adaptive mode the interval doubles up to MAX_ADAPTIVE_INTERVAL while the link
+     * is idle and snaps back to mInterval as soon as there is some traffic.
+     * Called from sampling thread.
+     */
+    protected void updateSamplingInterval(boolean idle) {
+        if (mAdaptiveInterval && idle) {
+            mSamplingInterval = Math.min(mSamplingInterval * 2, MAX_ADAPTIVE_INTERVAL);
+        } else {
+            mSamplingInterval = mInterval;
         }
-        return bytes;
+        if (DEBUG) log("updateSamplingInterval: idle=" + idle + "; interval=" + mSamplingInterval);
     }
 
-    private static long[] getTotalRxTxBytesFromStats() {
-        return new long[] { TrafficStats.getTotalRxBytes(),
-                TrafficStats.getTotalTxBytes() };
+    protected boolean canReadFromFile() {
+        return TrafficSamplingScheduler.getInstance().canReadFromFile();
     }
 }
@@ -17,169 +17,180 @@
 
 package com.ceco.q.gravitybox;
 
-import java.text.DecimalFormat;
-import java.util.HashMap;
-import java.util.Map;
-
 import com.ceco.q.gravitybox.managers.SysUiStatusBarIconManager;
 import com.ceco.q.gravitybox.managers.SysUiStatusBarIconManager.ColorInfo;
 
-import de.robv.android.xposed.XSharedPreferences;
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.ColorStateList;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Message;
-import android.os.SystemClock;
 import android.util.TypedValue;
 import android.view.View;
 
 public class TrafficMeterOmni extends TrafficMeterAbstract {
     private static final int KILOBYTE = 1024;
 
-    private static DecimalFormat decimalFormat = new DecimalFormat("##0.#");
-    private static final Map<String,String> SYMBOLS;
-    static {
-        decimalFormat.setMaximumIntegerDigits(4);
-        decimalFormat.setMaximumFractionDigits(1);
-
-        SYMBOLS = new HashMap<>();
-        SYMBOLS.put("b/s", "b/s");
-        SYMBOLS.put("B/s", "B/s");
-        SYMBOLS.put("k", "k");
-        SYMBOLS.put("M", "M");
-        SYMBOLS.put("G", "G");
-    }
-
     private enum Mode { IN, OUT, IN_OUT }
 
-    private long[] totalRxTxBytes = new long[] { 0, 0 };
+    private final long[] totalRxTxBytes = new long[] { 0, 0 };
     private long lastUpdateTime;
     private int txtSizeSingle;
     private int txtSizeMulti;
     private int KB = KILOBYTE;
     private int MB = KB * KB;
     private int GB = MB * KB;
-    private Mode mMode;
+    // written on UI thread, read on sampling thread
+    private volatile Mode mMode;
     private int mIconColor;
     private boolean mShowIcon;
-    private boolean mAutoHide;
-    private int mAutoHideThreshold;
-
-    @SuppressLint("HandlerLeak")
-    private Handler mTrafficHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            long timeDelta = SystemClock.elapsedRealtime() - lastUpdateTime;
-
-            if (timeDelta < mInterval * .95) {
-                if (msg.what != 1) {
-                    // we just updated the view, nothing further to do
-                    return;
-                }
-                if (timeDelta < 1) {
-                    // Can't div by 0 so make sure the value displayed is minimal
-                    timeDelta = Long.MAX_VALUE;
-                }
-            }
-            lastUpdateTime = SystemClock.elapsedRealtime();
+    private volatile boolean mAutoHide;
+    private volatile int mAutoHideThreshold;
+    // resolved unit suffixes indexed by magnitude: none, kilo, mega, giga
+    private String[] mByteUnits = new String[] { "B/s", "kB/s", "MB/s", "GB/s" };
+    private String[] mBitUnits = new String[] { "b/s", "kb/s", "Mb/s", "Gb/s" };
+    // sample results handed over from sampling thread to UI thread
+    private volatile int mTextSize;
+    private volatile boolean mVisible;
+    private volatile boolean mForceUpdate;
 
-            // Calculate the data rate from the change in total bytes and time
-            long[] newTotalRxTxBytes = getTotalRxTxBytes();
-            long rxData = newTotalRxTxBytes[0] - totalRxTxBytes[0];
-            long txData = newTotalRxTxBytes[1] - totalRxTxBytes[1];
+    @Override
+    public void onTrafficBaseline(long rxBytes, long txBytes, long timestamp) {
+        totalRxTxBytes[0] = rxBytes;
+        totalRxTxBytes[1] = txBytes;
+        lastUpdateTime = timestamp;
+        mForceUpdate = true;
+        // show initial state right away
+        processSample(rxBytes, txBytes, timestamp, true);
+    }
+
+    @Override
+    public void onTrafficSampled(long rxBytes, long txBytes, long timestamp) {
+        processSample(rxBytes, txBytes, timestamp, false);
+    }
 
-            if (shouldHide(rxData, txData, timeDelta)) {
-                setText("");
-                setVisibility(View.GONE);
+    /**
+     * @param baseline - sample has no time delta so it says nothing about link being idle
+     */
+    private void processSample(long rxBytes, long txBytes, long timestamp, boolean baseline) {
+        long timeDelta = timestamp - lastUpdateTime;
+        if (timeDelta < 1) {
+            // Can't div by 0 so make sure the value displayed is minimal
+            timeDelta = Long.MAX_VALUE;
+        }
+        lastUpdateTime = timestamp;
+
+        // Calculate the data rate from the change in total bytes and time
+        long rxData = rxBytes - totalRxTxBytes[0];
+        long txData = txBytes - totalRxTxBytes[1];
+
+        final boolean hide = shouldHide(rxData, txData, timeDelta);
+        if (!baseline) {
+            // while auto-hidden the link is considered idle
+            updateSamplingInterval(mAutoHide ? hide : isIdle(rxData, txData, timeDelta));
+        }
+
+        if (hide) {
+            synchronized (mTextBuilder) {
+                mTextBuilder.reset();
+            }
+            mVisible = false;
+        } else {
+            // If bit/s convert from Bytes to bits
+            String[] units;
+            if (KB == KILOBYTE) {
+                units = mByteUnits;
             } else {
-                // If bit/s convert from Bytes to bits
-                String symbol;
-                if (KB == KILOBYTE) {
-                    symbol = SYMBOLS.get("B/s");
-                } else {
-                    symbol = SYMBOLS.get("b/s");
-                    rxData = rxData * 8;
-                    txData = txData * 8;
-                }
+                units = mBitUnits;
+                rxData = rxData * 8;
+                txData = txData * 8;
+            }
+
+            synchronized (mTextBuilder) {
+                mTextBuilder.reset();
 
                 // Get information for uplink ready so the line return can be added
-                String output = "";
                 if (mMode == Mode.OUT || mMode == Mode.IN_OUT) {
-                    output = formatOutput(timeDelta, txData, symbol);
+                    formatOutput(timeDelta, txData, units);
                 }
-    
+
                 // Ensure text size is where it needs to be
-                int textSize;
                 if (mMode == Mode.IN_OUT) {
-                    output += "\n";
-                    textSize = txtSizeMulti;
+                    mTextBuilder.append('\n');
+                    mTextSize = txtSizeMulti;
                 } else {
-                    textSize = txtSizeSingle;
+                    mTextSize = txtSizeSingle;
                 }
-    
+
                 // Add information for downlink if it's called for
                 if (mMode == Mode.IN || mMode == Mode.IN_OUT) {
-                    output += formatOutput(timeDelta, rxData, symbol);
-                }
-    
-                // Update view if there's anything new to show
-                if (!output.contentEquals(getText()) || msg.what == 1) {
-                    setTextSize(TypedValue.COMPLEX_UNIT_PX, (float)textSize);
-                    setText(output);
+                    formatOutput(timeDelta, rxData, units);
                 }
-                setVisibility(View.VISIBLE);
             }
-
-            // Post delayed message to refresh in ~1000ms
-            totalRxTxBytes[0] = newTotalRxTxBytes[0];
-            totalRxTxBytes[1] = newTotalRxTxBytes[1];
-            clearHandlerCallbacks();
-            mTrafficHandler.postDelayed(mRunnable, mInterval);
+            mVisible = true;
         }
 
-        private String formatOutput(long timeDelta, long data, String symbol) {
-            long speed = (long)(data / (timeDelta / 1000F));
-            if (speed < KB) {
-                return decimalFormat.format(speed) + symbol;
-            } else if (speed < MB) {
-                return decimalFormat.format(speed / (float)KB) + SYMBOLS.get("k") + symbol;
-            } else if (speed < GB) {
-                return decimalFormat.format(speed / (float)MB) + SYMBOLS.get("M") + symbol;
+        totalRxTxBytes[0] = rxBytes;
+        totalRxTxBytes[1] = txBytes;
+        postViewUpdate();
+    }
+
+    @Override
+    protected void onViewUpdate() {
+        if (mVisible) {
+            // Update view if there's anything new to show
+            if (isTextChanged() || mForceUpdate) {
+                setTextSize(TypedValue.COMPLEX_UNIT_PX, (float)mTextSize);
+                applyText();
+                mForceUpdate = false;
+            }
+            setVisibility(View.VISIBLE);
+        } else {
+            if (isTextChanged()) {
+                applyText();
             }
-            return decimalFormat.format(speed / (float)GB) + SYMBOLS.get("G") + symbol;
+            setVisibility(View.GONE);
         }
+    }
 
-        private boolean shouldHide(long rxData, long txData, long timeDelta) {
-            long speedTxKB = (long)(txData / (timeDelta / 1000f)) / KILOBYTE;
-            long speedRxKB = (long)(rxData / (timeDelta / 1000f)) / KILOBYTE;
-            return mAutoHide &&
-                   (mMode == Mode.IN && speedRxKB <= mAutoHideThreshold ||
-                   mMode == Mode.OUT && speedTxKB <= mAutoHideThreshold ||
-                   mMode == Mode.IN_OUT && 
-                       speedRxKB <= mAutoHideThreshold && 
-                       speedTxKB <= mAutoHideThreshold);
-                    
+    private void formatOutput(long timeDelta, long data, String[] units) {
+        long speed = data * 1000 / timeDelta;
+        if (speed < KB) {
+            mTextBuilder.append(speed).append(units[0]);
+        } else if (speed < MB) {
+            mTextBuilder.appendDecimal(speed, KB, false).append(units[1]);
+        } else if (speed < GB) {
+            mTextBuilder.appendDecimal(speed, MB, false).append(units[2]);
+        } else {
+            mTextBuilder.appendDecimal(speed, GB, false).append(units[3]);
         }
-    };
+    }
 
-    private Runnable mRunnable = () -> mTrafficHandler.sendEmptyMessage(0);
+    private boolean isIdle(long rxData, long txData, long timeDelta) {
+        return (long)(rxData / (timeDelta / 1000f)) < ADAPTIVE_IDLE_THRESHOLD &&
+                (long)(txData / (timeDelta / 1000f)) < ADAPTIVE_IDLE_THRESHOLD;
+    }
+
+    private boolean shouldHide(long rxData, long txData, long timeDelta) {
+        long speedTxKB = (long)(txData / (timeDelta / 1000f)) / KILOBYTE;
+        long speedRxKB = (long)(rxData / (timeDelta / 1000f)) / KILOBYTE;
+        return mAutoHide &&
+               (mMode == Mode.IN && speedRxKB <= mAutoHideThreshold ||
+               mMode == Mode.OUT && speedTxKB <= mAutoHideThreshold ||
+               mMode == Mode.IN_OUT && 
+                   speedRxKB <= mAutoHideThreshold && 
+                   speedTxKB <= mAutoHideThreshold);
+    }
 
     public TrafficMeterOmni(Context context) {
         super(context);
     }
 
     @Override
-    protected void onInitialize(XSharedPreferences prefs) throws Throwable {
+    protected void onInitialize(PrefsSnapshot prefs) throws Throwable {
         mGbContext = Utils.getGbContext(getContext());
-        SYMBOLS.put("b/s", mGbContext.getString(R.string.bit_per_sec_abbr));
-        SYMBOLS.put("B/s", mGbContext.getString(R.string.byte_per_sec_abbr));
-        SYMBOLS.put("k", mGbContext.getString(R.string.kilo_abbr));
-        SYMBOLS.put("M", mGbContext.getString(R.string.mega_abbr));
-        SYMBOLS.put("G", mGbContext.getString(R.string.giga_abbr));
+        mByteUnits = resolveUnits(mGbContext.getString(R.string.byte_per_sec_abbr));
+        mBitUnits = resolveUnits(mGbContext.getString(R.string.bit_per_sec_abbr));
 
         mMode = Mode.valueOf(prefs.getString(GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_OMNI_MODE, "IN_OUT"));
         mShowIcon = prefs.getBoolean(GravityBoxSettings.PREF_KEY_DATA_TRAFFIC_OMNI_SHOW_ICON, true);
@@ -207,6 +218,15 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
         }
     }
 
+    private String[] resolveUnits(String symbol) {
+        return new String[] {
+                symbol,
+                mGbContext.getString(R.string.kilo_abbr) + symbol,
+                mGbContext.getString(R.string.mega_abbr) + symbol,
+                mGbContext.getString(R.string.giga_abbr) + symbol
+        };
+    }
+
     private void setSize() {
         final Resources resources = getResources();
         txtSizeSingle = (int) (TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, mSize,
@@ -217,23 +237,10 @@ public class TrafficMeterOmni extends TrafficMeterAbstract {
 
     @Override
     protected void startTrafficUpdates() {
-        totalRxTxBytes = getTotalRxTxBytes();
-        lastUpdateTime = SystemClock.elapsedRealtime();
-        mTrafficHandler.sendEmptyMessage(1);
+        super.startTrafficUpdates();
         updateTrafficDrawable();
     }
 
-    @Override
-    protected void stopTrafficUpdates() {
-        clearHandlerCallbacks();
-    }
-
-    private void clearHandlerCallbacks() {
-        mTrafficHandler.removeCallbacks(mRunnable);
-        mTrafficHandler.removeMessages(0);
-        mTrafficHandler.removeMessages(1);
-    }
-
     private void updateTrafficDrawable() {
         if (mGbContext == null) return;
 
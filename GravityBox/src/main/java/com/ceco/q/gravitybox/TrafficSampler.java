@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads byte counters from xt_qtaguid proc files without producing garbage.
+ * The file is kept open and re-read from offset 0 on every sample, its content
+ * is parsed in place from a reusable buffer and results are written into
+ * caller owned arrays.
+ * Not thread safe.
+ */
+public class TrafficSampler {
+    public static final String IFACE_STAT_FILE = "/proc/net/xt_qtaguid/iface_stat_fmt";
+    public static final String UID_STAT_FILE = "/proc/net/xt_qtaguid/stats";
+
+    public static final int RX = 0;
+    public static final int TX = 1;
+
+    // interface classes
+    public static final int IFACE_WIFI = 0;
+    public static final int IFACE_MOBILE = 1;
+    public static final int IFACE_VPN = 2;
+    public static final int IFACE_OTHER = 3;
+    public static final int IFACE_CLASS_COUNT = 4;
+
+    public interface UidConsumer {
+        void onUidBytes(int uid, long rxBytes, long txBytes);
+    }
+
+    // column indexes within iface_stat_fmt line
+    private static final int COL_RX_BYTES = 1;
+    private static final int COL_TX_BYTES = 3;
+
+    // column indexes within stats line
+    private static final int COL_UID_IFACE = 1;
+    private static final int COL_UID_TAG = 2;
+    private static final int COL_UID = 3;
+    private static final int COL_UID_RX_BYTES = 5;
+    private static final int COL_UID_TX_BYTES = 7;
+
+    private static final byte[] IFACE_HEADER = { 'i', 'f', 'n', 'a', 'm', 'e' };
+    private static final byte[] IFACE_LO = { 'l', 'o' };
+    private static final byte[] IFACE_TUN = { 't', 'u', 'n' };
+    private static final byte[] IFACE_WLAN = { 'w', 'l', 'a', 'n' };
+    private static final byte[] IFACE_RMNET = { 'r', 'm', 'n', 'e', 't' };
+    private static final byte[] IFACE_CCMNI = { 'c', 'c', 'm', 'n', 'i' };
+    private static final byte[] TAG_NONE = { '0', 'x', '0' };
+
+    private final String mPath;
+    private RandomAccessFile mFile;
+    private byte[] mBuffer = new byte[2048];
+
+    public TrafficSampler() {
+        this(IFACE_STAT_FILE);
+    }
+
+    TrafficSampler(String path) {
+        mPath = path;
+    }
+
+    /**
+     * Samples total RX/TX bytes of all counted interfaces
+     * @param rxTx - array of at least 2 elements receiving RX and TX byte counts
+     * @return false if file could not be read or parsed; rxTx content is undefined in that case
+     */
+    public boolean sample(long[] rxTx) {
+        return sample(rxTx, null);
+    }
+
+    /**
+     * Samples total RX/TX bytes of all counted interfaces together with
+     * RX/TX bytes per interface class
+     * @param rxTx - array of at least 2 elements receiving RX and TX byte counts
+     * @param ifaceRxTx - array of IFACE_CLASS_COUNT * 2 elements indexed by
+     *                    ifaceClass * 2 + RX/TX or null if not interested
+     * @return false if file could not be read or parsed; array content is undefined in that case
+     */
+    public boolean sample(long[] rxTx, long[] ifaceRxTx) {
+        try {
+            final int len = readFile();
+            return parse(mBuffer, len, rxTx, ifaceRxTx);
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Samples per UID RX/TX bytes from UID_STAT_FILE. Consumer gets called once for
+     * every untagged counter set of an UID so it has to sum values of the same UID.
+     * @return false if file could not be read
+     */
+    public boolean sampleUids(UidConsumer consumer) {
+        try {
+            final int len = readFile();
+            parseUids(mBuffer, len, consumer);
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    public void close() {
+        if (mFile != null) {
+            try { mFile.close(); } catch (IOException ignored) { }
+            mFile = null;
+        }
+    }
+
+    private int readFile() throws IOException {
+        if (mFile == null) {
+            mFile = new RandomAccessFile(mPath, "r");
+        }
+        mFile.seek(0);
+        int len = 0;
+        int read;
+        while ((read = mFile.read(mBuffer, len, mBuffer.length - len)) > 0) {
+            len += read;
+            if (len == mBuffer.length) {
+                // grows only until it fits the biggest content seen so far
+                byte[] buf = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, buf, 0, len);
+                mBuffer = buf;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Parses iface_stat_fmt content summing RX and TX bytes of counted interfaces
+     * @return false if content has unexpected format
+     */
+    static boolean parse(byte[] buf, int len, long[] rxTx, long[] ifaceRxTx) {
+        rxTx[RX] = 0;
+        rxTx[TX] = 0;
+        if (ifaceRxTx != null) {
+            for (int i = 0; i < IFACE_CLASS_COUNT * 2; i++) {
+                ifaceRxTx[i] = 0;
+            }
+        }
+        int pos = 0;
+        while (pos < len) {
+            int ifaceStart = pos;
+            int ifaceEnd = skipToken(buf, pos, len);
+            final boolean valid = isValidInterface(buf, ifaceStart, ifaceEnd);
+            pos = ifaceEnd;
+            int col = 0;
+            long rx = 0, tx = 0;
+            while (pos < len && buf[pos] != '\n') {
+                if (buf[pos] == ' ') {
+                    pos++;
+                    continue;
+                }
+                col++;
+                if (valid && col == COL_RX_BYTES) {
+                    rx = parseLong(buf, pos, len);
+                } else if (valid && col == COL_TX_BYTES) {
+                    tx = parseLong(buf, pos, len);
+                }
+                pos = skipToken(buf, pos, len);
+            }
+            if (ifaceEnd > ifaceStart && col < COL_TX_BYTES) {
+                // Unsupported length of net params
+                return false;
+            }
+            if (valid) {
+                final int ifaceClass = getInterfaceClass(buf, ifaceStart, ifaceEnd);
+                // VPN traffic is already accounted for by underlying interface
+                if (ifaceClass != IFACE_VPN) {
+                    rxTx[RX] += rx;
+                    rxTx[TX] += tx;
+                }
+                if (ifaceRxTx != null) {
+                    ifaceRxTx[ifaceClass * 2 + RX] += rx;
+                    ifaceRxTx[ifaceClass * 2 + TX] += tx;
+                }
+            }
+            pos++;
+        }
+        return true;
+    }
+
+    /**
+     * Parses stats content reporting untagged RX and TX bytes of each line to consumer
+     */
+    static void parseUids(byte[] buf, int len, UidConsumer consumer) {
+        int pos = 0;
+        while (pos < len) {
+            int col = 0;
+            boolean counted = false;
+            boolean untagged = false;
+            int uid = -1;
+            long rx = 0, tx = 0;
+            while (pos < len && buf[pos] != '\n') {
+                if (buf[pos] == ' ') {
+                    pos++;
+                    continue;
+                }
+                final int end = skipToken(buf, pos, len);
+                if (col == COL_UID_IFACE) {
+                    counted = isValidInterface(buf, pos, end);
+                } else if (col == COL_UID_TAG) {
+                    untagged = counted && matches(buf, pos, end, TAG_NONE);
+                } else if (untagged && col == COL_UID) {
+                    uid = (int) parseLong(buf, pos, len);
+                } else if (untagged && col == COL_UID_RX_BYTES) {
+                    rx = parseLong(buf, pos, len);
+                } else if (untagged && col == COL_UID_TX_BYTES) {
+                    tx = parseLong(buf, pos, len);
+                }
+                col++;
+                pos = end;
+            }
+            if (untagged && uid >= 0 && col > COL_UID_TX_BYTES) {
+                consumer.onUidBytes(uid, rx, tx);
+            }
+            pos++;
+        }
+    }
+
+    private static int skipToken(byte[] buf, int pos, int len) {
+        while (pos < len && buf[pos] != ' ' && buf[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static long parseLong(byte[] buf, int pos, int len) {
+        long value = 0;
+        while (pos < len && buf[pos] != ' ' && buf[pos] != '\n') {
+            final int digit = buf[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+        return value;
+    }
+
+    private static boolean isValidInterface(byte[] buf, int start, int end) {
+        return (end > start &&
+                !matches(buf, start, end, IFACE_HEADER) &&
+                !matches(buf, start, end, IFACE_LO));
+    }
+
+    private static int getInterfaceClass(byte[] buf, int start, int end) {
+        if (startsWith(buf, start, end, IFACE_WLAN)) {
+            return IFACE_WIFI;
+        } else if (startsWith(buf, start, end, IFACE_RMNET) ||
+                startsWith(buf, start, end, IFACE_CCMNI)) {
+            return IFACE_MOBILE;
+        } else if (startsWith(buf, start, end, IFACE_TUN)) {
+            return IFACE_VPN;
+        }
+        return IFACE_OTHER;
+    }
+
+    private static boolean matches(byte[] buf, int start, int end, byte[] text) {
+        return (end - start == text.length && startsWith(buf, start, end, text));
+    }
+
+    private static boolean startsWith(byte[] buf, int start, int end, byte[] text) {
+        if (end - start < text.length) {
+            return false;
+        }
+        for (int i = 0; i < text.length; i++) {
+            if (buf[start + i] != text[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
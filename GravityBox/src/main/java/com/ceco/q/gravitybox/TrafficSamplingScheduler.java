@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+import java.io.File;
+import java.util.Arrays;
+
+import com.ceco.q.gravitybox.managers.BroadcastMediator;
+
+import android.net.TrafficStats;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import de.robv.android.xposed.XposedBridge;
+
+/**
+ * Samples traffic counters on a background thread on behalf of all registered clients.
+ * Counters are read once per interval no matter how many clients are registered.
+ * All client callbacks are invoked on the sampling thread.
+ */
+public class TrafficSamplingScheduler {
+    private static final String TAG = "GB:TrafficSamplingScheduler";
+    private static final boolean DEBUG = false;
+
+    private static void log(String message) {
+        XposedBridge.log(TAG + ": " + message);
+    }
+
+    public interface Client {
+        /**
+         * @return requested sampling interval in milliseconds
+         */
+        int getSamplingInterval();
+
+        /**
+         * Delivers first sample after client was (re)registered
+         */
+        void onTrafficBaseline(long rxBytes, long txBytes, long timestamp);
+
+        /**
+         * Delivers periodic sample
+         */
+        void onTrafficSampled(long rxBytes, long txBytes, long timestamp);
+    }
+
+    private static final String[] IFACE_CLASS_NAMES = new String[] { "wifi", "mobile", "vpn", "other" };
+    private static final int DUMP_TOP_TALKERS = 5;
+
+    private static TrafficSamplingScheduler sInstance;
+
+    public static synchronized TrafficSamplingScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TrafficSamplingScheduler();
+        }
+        return sInstance;
+    }
+
+    private final Handler mHandler;
+    private final TrafficSampler mSampler = new TrafficSampler();
+    private final TrafficSampler mUidSampler = new TrafficSampler(TrafficSampler.UID_STAT_FILE);
+    private final long[] mRxTx = new long[2];
+    private final long[] mIfaceRxTx = new long[TrafficSampler.IFACE_CLASS_COUNT * 2];
+    private volatile TrafficStatsEngine mStatsEngine;
+    private long mTimestamp;
+    private Boolean mCanReadFromFile;
+    // uptime of scheduled sample or 0 if none is scheduled; accessed from sampling thread only
+    private long mNextSampleTime;
+    // accessed from sampling thread only
+    private Client[] mClients = new Client[0];
+
+    private TrafficSamplingScheduler() {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Makes statistics collected while enabled by setStatsCollectionEnabled()
+     * dumpable with diagnostic broadcast
+     */
+    public static void registerStatsDump(BroadcastMediator mediator) {
+        mediator.addStatsDumper(() -> getInstance().dumpStats());
+    }
+
+    public void register(Client client) {
+        mHandler.post(() -> addClient(client));
+    }
+
+    public void unregister(Client client) {
+        mHandler.post(() -> removeClient(client));
+    }
+
+    /**
+     * Returns statistics engine which gets fed with per interface class and
+     * per UID counters while there is any client registered
+     * @return engine or null if statistics collection is disabled
+     */
+    public TrafficStatsEngine getStatsEngine() {
+        return mStatsEngine;
+    }
+
+    /**
+     * Enables or disables statistics collection. It is an explicit opt-in as reading
+     * per UID counters costs considerably more than the totals every sample needs.
+     * Disabling it drops statistics collected so far.
+     */
+    public void setStatsCollectionEnabled(boolean enabled) {
+        mHandler.post(() -> {
+            if (enabled && mStatsEngine == null) {
+                TrafficStatsEngine engine = new TrafficStatsEngine();
+                engine.setUidTrackingEnabled(true);
+                mStatsEngine = engine;
+                if (DEBUG) log("statistics collection enabled");
+            } else if (!enabled && mStatsEngine != null) {
+                mStatsEngine.setUidTrackingEnabled(false);
+                mStatsEngine = null;
+                mUidSampler.close();
+                if (DEBUG) log("statistics collection disabled");
+            }
+        });
+    }
+
+    /**
+     * Should be called from sampling thread only
+     */
+    public boolean canReadFromFile() {
+        if (mCanReadFromFile == null) {
+            File f = new File(TrafficSampler.IFACE_STAT_FILE);
+            mCanReadFromFile = (f.exists() && f.canRead());
+        }
+        return mCanReadFromFile;
+    }
+
+    private void dumpStats() {
+        final TrafficStatsEngine engine = mStatsEngine;
+        if (engine == null) {
+            log("Stats: not collecting");
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        final long[] lastMinute = new long[60];
+        StringBuilder buf = new StringBuilder("Stats:");
+        for (int iface = 0; iface < TrafficSampler.IFACE_CLASS_COUNT; iface++) {
+            buf.append("\n  ").append(IFACE_CLASS_NAMES[iface]);
+            for (int dir = TrafficSampler.RX; dir <= TrafficSampler.TX; dir++) {
+                final int count = engine.getHistory(TrafficStatsEngine.RESOLUTION_SECOND,
+                        iface, dir, now, lastMinute);
+                long sum = 0;
+                for (int i = 0; i < count; i++) {
+                    sum += lastMinute[i];
+                }
+                buf.append(dir == TrafficSampler.RX ? ": rx=" : "; tx=")
+                        .append(engine.getTotal(iface, dir))
+                        .append(" (last minute ").append(sum).append(")");
+            }
+        }
+        final int[] uids = new int[DUMP_TOP_TALKERS];
+        final long[] bytes = new long[DUMP_TOP_TALKERS];
+        final int count = engine.getTopTalkers(uids, bytes);
+        buf.append("\n  top talkers:");
+        for (int i = 0; i < count; i++) {
+            buf.append(" uid=").append(uids[i]).append(" bytes=").append(bytes[i]).append(";");
+        }
+        log(buf.toString());
+    }
+
+    private void addClient(Client client) {
+        if (indexOf(client) >= 0) {
+            // client keeps getting samples; it might require shorter interval though
+            scheduleSample(client.getSamplingInterval());
+            return;
+        }
+        mClients = Arrays.copyOf(mClients, mClients.length + 1);
+        mClients[mClients.length - 1] = client;
+        if (DEBUG) log("client added: " + client + "; clients=" + mClients.length);
+        sample();
+        client.onTrafficBaseline(mRxTx[0], mRxTx[1], mTimestamp);
+        scheduleSample(client.getSamplingInterval());
+    }
+
+    /**
+     * Schedules next sample unless there is one scheduled to happen sooner
+     */
+    private void scheduleSample(int interval) {
+        final long when = SystemClock.uptimeMillis() + interval;
+        if (mNextSampleTime != 0 && mNextSampleTime <= when) return;
+        mHandler.removeCallbacks(mSampleRunnable);
+        mHandler.postAtTime(mSampleRunnable, when);
+        mNextSampleTime = when;
+    }
+
+    private void removeClient(Client client) {
+        final int idx = indexOf(client);
+        if (idx < 0) return;
+
+        Client[] clients = new Client[mClients.length - 1];
+        System.arraycopy(mClients, 0, clients, 0, idx);
+        System.arraycopy(mClients, idx + 1, clients, idx, clients.length - idx);
+        mClients = clients;
+        if (DEBUG) log("client removed: " + client + "; clients=" + mClients.length);
+        if (mClients.length == 0) {
+            mHandler.removeCallbacks(mSampleRunnable);
+            mNextSampleTime = 0;
+            mSampler.close();
+            mUidSampler.close();
+            if (mStatsEngine != null) {
+                mStatsEngine.resetBaseline();
+            }
+        }
+    }
+
+    private int indexOf(Client client) {
+        for (int i = 0; i < mClients.length; i++) {
+            if (mClients[i] == client) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int getInterval() {
+        int interval = Integer.MAX_VALUE;
+        for (Client c : mClients) {
+            interval = Math.min(interval, c.getSamplingInterval());
+        }
+        return interval;
+    }
+
+    private void sample() {
+        mTimestamp = SystemClock.elapsedRealtime();
+        final TrafficStatsEngine engine = mStatsEngine;
+        sampleCounters(engine != null);
+        if (engine != null) {
+            engine.onIfaceSample(mTimestamp, mIfaceRxTx);
+            if (engine.isUidTrackingEnabled()) {
+                engine.beginUidSample();
+                if (!mUidSampler.sampleUids(engine)) {
+                    GravityBox.log(TAG, "Error reading " + TrafficSampler.UID_STAT_FILE +
+                            "; disabling per UID statistics");
+                    engine.setUidTrackingEnabled(false);
+                }
+                engine.endUidSample();
+            }
+        }
+    }
+
+    private void sampleCounters(boolean perIface) {
+        if (canReadFromFile()) {
+            if (mSampler.sample(mRxTx, perIface ? mIfaceRxTx : null)) {
+                return;
+            }
+            GravityBox.log(TAG, "Error reading " + TrafficSampler.IFACE_STAT_FILE +
+                    "; falling back to TrafficStats");
+        }
+        mRxTx[0] = TrafficStats.getTotalRxBytes();
+        mRxTx[1] = TrafficStats.getTotalTxBytes();
+        if (perIface) {
+            // TrafficStats can only distinguish mobile from the rest
+            final long mobileRx = TrafficStats.getMobileRxBytes();
+            final long mobileTx = TrafficStats.getMobileTxBytes();
+            Arrays.fill(mIfaceRxTx, 0);
+            mIfaceRxTx[TrafficSampler.IFACE_MOBILE * 2 + TrafficSampler.RX] = mobileRx;
+            mIfaceRxTx[TrafficSampler.IFACE_MOBILE * 2 + TrafficSampler.TX] = mobileTx;
+            mIfaceRxTx[TrafficSampler.IFACE_OTHER * 2 + TrafficSampler.RX] = mRxTx[0] - mobileRx;
+            mIfaceRxTx[TrafficSampler.IFACE_OTHER * 2 + TrafficSampler.TX] = mRxTx[1] - mobileTx;
+        }
+    }
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mNextSampleTime = 0;
+            if (mClients.length == 0) return;
+
+            sample();
+            if (DEBUG) log("RX=" + mRxTx[0] + "; TX=" + mRxTx[1]);
+            for (Client c : mClients) {
+                c.onTrafficSampled(mRxTx[0], mRxTx[1], mTimestamp);
+            }
+            scheduleSample(getInterval());
+        }
+    };
+}
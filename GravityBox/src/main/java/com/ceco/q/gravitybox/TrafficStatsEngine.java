@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+/**
+ * Keeps rolling history of traffic per interface class and optionally
+ * cumulative traffic per UID. All storage is preallocated so memory stays bounded
+ * and cost of a sample does not depend on history length.
+ * Fed from sampling thread, queried from any thread.
+ */
+public class TrafficStatsEngine implements TrafficSampler.UidConsumer {
+
+    // history resolutions
+    public static final int RESOLUTION_SECOND = 0;
+    public static final int RESOLUTION_MINUTE = 1;
+
+    private static final int CHANNEL_COUNT = TrafficSampler.IFACE_CLASS_COUNT * 2;
+    private static final int UID_CAPACITY = 256;
+    // UID missing from this many consecutive samples is considered gone (e.g. uninstalled)
+    // and its slot is freed for new UIDs
+    private static final int UID_EVICT_SAMPLES = 60;
+
+    private static final class History {
+        final long slotDuration;
+        final int capacity;
+        // capacity slots per channel
+        final long[] data;
+        long currentSlot = -1;
+
+        History(long slotDuration, int capacity) {
+            this.slotDuration = slotDuration;
+            this.capacity = capacity;
+            this.data = new long[CHANNEL_COUNT * capacity];
+        }
+
+        void add(long timestamp, long[] deltas) {
+            advanceTo(timestamp / slotDuration);
+            final int idx = (int) (currentSlot % capacity);
+            for (int ch = 0; ch < CHANNEL_COUNT; ch++) {
+                data[ch * capacity + idx] += deltas[ch];
+            }
+        }
+
+        void advanceTo(long slot) {
+            if (currentSlot < 0) {
+                currentSlot = slot;
+                return;
+            }
+            // clear slots we have skipped over; never more than whole buffer
+            final long gap = Math.min(slot - currentSlot, capacity);
+            for (long s = 1; s <= gap; s++) {
+                final int idx = (int) ((currentSlot + s) % capacity);
+                for (int ch = 0; ch < CHANNEL_COUNT; ch++) {
+                    data[ch * capacity + idx] = 0;
+                }
+            }
+            currentSlot = Math.max(slot, currentSlot);
+        }
+
+        int copy(int channel, long[] out) {
+            final int count = Math.min(out.length, capacity);
+            for (int i = 0; i < count; i++) {
+                final long slot = currentSlot - (count - 1 - i);
+                out[i] = slot < 0 ? 0 : data[channel * capacity + (int) (slot % capacity)];
+            }
+            return count;
+        }
+    }
+
+    private final History[] mHistory = new History[] {
+            new History(1000, 300),     // last 5 minutes
+            new History(60000, 1440)    // last 24 hours
+    };
+    private final long[] mLastCounters = new long[CHANNEL_COUNT];
+    private final long[] mDeltas = new long[CHANNEL_COUNT];
+    private final long[] mTotals = new long[CHANNEL_COUNT];
+    private boolean mHasLastCounters;
+
+    // open addressed UID table
+    private boolean mUidTrackingEnabled;
+    private final int[] mUids = new int[UID_CAPACITY];
+    private final boolean[] mUidUsed = new boolean[UID_CAPACITY];
+    private final boolean[] mUidHasLast = new boolean[UID_CAPACITY];
+    private final boolean[] mUidSeen = new boolean[UID_CAPACITY];
+    private final int[] mUidMissed = new int[UID_CAPACITY];
+    private final long[] mUidCurrent = new long[UID_CAPACITY * 2];
+    private final long[] mUidLast = new long[UID_CAPACITY * 2];
+    private final long[] mUidTotals = new long[UID_CAPACITY * 2];
+
+    /**
+     * Feeds current interface class counters
+     * @param ifaceRxTx - counters indexed by ifaceClass * 2 + RX/TX as filled by TrafficSampler
+     */
+    public synchronized void onIfaceSample(long timestamp, long[] ifaceRxTx) {
+        for (int ch = 0; ch < CHANNEL_COUNT; ch++) {
+            long delta = mHasLastCounters ? ifaceRxTx[ch] - mLastCounters[ch] : 0;
+            // counters get reset when interface goes down
+            mDeltas[ch] = delta < 0 ? 0 : delta;
+            mTotals[ch] += mDeltas[ch];
+            mLastCounters[ch] = ifaceRxTx[ch];
+        }
+        mHasLastCounters = true;
+        for (History h : mHistory) {
+            h.add(timestamp, mDeltas);
+        }
+    }
+
+    /**
+     * Forgets last counters so the next sample becomes a new baseline.
+     * To be called when sampling was paused.
+     */
+    public synchronized void resetBaseline() {
+        mHasLastCounters = false;
+        for (int i = 0; i < UID_CAPACITY; i++) {
+            mUidHasLast[i] = false;
+        }
+    }
+
+    public synchronized void setUidTrackingEnabled(boolean enabled) {
+        mUidTrackingEnabled = enabled;
+    }
+
+    public synchronized boolean isUidTrackingEnabled() {
+        return mUidTrackingEnabled;
+    }
+
+    public synchronized void beginUidSample() {
+        for (int i = 0; i < UID_CAPACITY * 2; i++) {
+            mUidCurrent[i] = 0;
+        }
+        for (int i = 0; i < UID_CAPACITY; i++) {
+            mUidSeen[i] = false;
+        }
+    }
+
+    @Override
+    public synchronized void onUidBytes(int uid, long rxBytes, long txBytes) {
+        final int slot = findUidSlot(uid, true);
+        if (slot < 0) return;
+        mUidSeen[slot] = true;
+        mUidCurrent[slot * 2 + TrafficSampler.RX] += rxBytes;
+        mUidCurrent[slot * 2 + TrafficSampler.TX] += txBytes;
+    }
+
+    public synchronized void endUidSample() {
+        boolean evict = false;
+        for (int slot = 0; slot < UID_CAPACITY; slot++) {
+            if (!mUidUsed[slot]) continue;
+            if (!mUidSeen[slot]) {
+                // keep last counters so the UID reappearing does not count them again
+                evict |= ++mUidMissed[slot] >= UID_EVICT_SAMPLES;
+                continue;
+            }
+            mUidMissed[slot] = 0;
+            for (int i = slot * 2; i < slot * 2 + 2; i++) {
+                if (mUidHasLast[slot]) {
+                    final long delta = mUidCurrent[i] - mUidLast[i];
+                    mUidTotals[i] += delta < 0 ? 0 : delta;
+                }
+                mUidLast[i] = mUidCurrent[i];
+            }
+            mUidHasLast[slot] = true;
+        }
+        if (evict) {
+            for (int slot = 0; slot < UID_CAPACITY; slot++) {
+                if (mUidUsed[slot] && mUidMissed[slot] >= UID_EVICT_SAMPLES) {
+                    removeUidSlot(slot);
+                    // another entry might have been shifted into this slot
+                    slot--;
+                }
+            }
+        }
+    }
+
+    private static int getUidHomeSlot(int uid) {
+        return (uid * 0x9E3779B9) >>> 24 & (UID_CAPACITY - 1);
+    }
+
+    /**
+     * Frees slot shifting following entries of the same probe sequence back
+     * so that lookups keep working without tombstones
+     */
+    private void removeUidSlot(int slot) {
+        final int mask = UID_CAPACITY - 1;
+        int hole = slot;
+        int idx = (slot + 1) & mask;
+        while (mUidUsed[idx]) {
+            // entry can fill the hole if the hole lies on its probe path
+            final int home = getUidHomeSlot(mUids[idx]);
+            if (((idx - home) & mask) >= ((idx - hole) & mask)) {
+                moveUidSlot(idx, hole);
+                hole = idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+        mUidUsed[hole] = false;
+        mUidHasLast[hole] = false;
+        mUidSeen[hole] = false;
+        mUidMissed[hole] = 0;
+        for (int i = hole * 2; i < hole * 2 + 2; i++) {
+            mUidCurrent[i] = 0;
+            mUidLast[i] = 0;
+            mUidTotals[i] = 0;
+        }
+    }
+
+    private void moveUidSlot(int from, int to) {
+        mUids[to] = mUids[from];
+        mUidUsed[to] = true;
+        mUidHasLast[to] = mUidHasLast[from];
+        mUidSeen[to] = mUidSeen[from];
+        mUidMissed[to] = mUidMissed[from];
+        for (int i = 0; i < 2; i++) {
+            mUidCurrent[to * 2 + i] = mUidCurrent[from * 2 + i];
+            mUidLast[to * 2 + i] = mUidLast[from * 2 + i];
+            mUidTotals[to * 2 + i] = mUidTotals[from * 2 + i];
+        }
+    }
+
+    private int findUidSlot(int uid, boolean insert) {
+        final int mask = UID_CAPACITY - 1;
+        int idx = getUidHomeSlot(uid);
+        for (int i = 0; i < UID_CAPACITY; i++) {
+            if (!mUidUsed[idx]) {
+                if (!insert) return -1;
+                mUidUsed[idx] = true;
+                mUids[idx] = uid;
+                return idx;
+            }
+            if (mUids[idx] == uid) {
+                return idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+        // table is full; traffic of new UIDs is not tracked until some slot gets evicted
+        return -1;
+    }
+
+    public int getHistoryCapacity(int resolution) {
+        return mHistory[resolution].capacity;
+    }
+
+    public long getHistorySlotDuration(int resolution) {
+        return mHistory[resolution].slotDuration;
+    }
+
+    /**
+     * Fills history of bytes transferred per slot, oldest first, newest last
+     * @param resolution - RESOLUTION_SECOND or RESOLUTION_MINUTE
+     * @param ifaceClass - one of TrafficSampler.IFACE_* classes
+     * @param direction - TrafficSampler.RX or TrafficSampler.TX
+     * @param now - current elapsed realtime so idle period reads as zero traffic
+     * @param out - caller owned array receiving up to its length most recent slots
+     * @return number of slots written
+     */
+    public synchronized int getHistory(int resolution, int ifaceClass, int direction,
+                                       long now, long[] out) {
+        final History h = mHistory[resolution];
+        h.advanceTo(now / h.slotDuration);
+        return h.copy(ifaceClass * 2 + direction, out);
+    }
+
+    /**
+     * @return bytes transferred since engine was created
+     */
+    public synchronized long getTotal(int ifaceClass, int direction) {
+        return mTotals[ifaceClass * 2 + direction];
+    }
+
+    /**
+     * @return bytes transferred by UID since UID tracking was enabled or -1 if not tracked
+     */
+    public synchronized long getUidTotal(int uid, int direction) {
+        final int slot = findUidSlot(uid, false);
+        return slot < 0 ? -1 : mUidTotals[slot * 2 + direction];
+    }
+
+    /**
+     * Fills UIDs with the most RX+TX traffic, biggest first
+     * @param outUids - caller owned array receiving UIDs
+     * @param outBytes - caller owned array of the same length receiving RX+TX bytes
+     * @return number of entries written
+     */
+    public synchronized int getTopTalkers(int[] outUids, long[] outBytes) {
+        final int max = Math.min(outUids.length, outBytes.length);
+        int count = 0;
+        for (int slot = 0; slot < UID_CAPACITY; slot++) {
+            if (!mUidUsed[slot]) continue;
+            final long bytes = mUidTotals[slot * 2] + mUidTotals[slot * 2 + 1];
+            if (bytes == 0) continue;
+            // insertion into sorted top list
+            int pos = count;
+            while (pos > 0 && outBytes[pos - 1] < bytes) {
+                if (pos < max) {
+                    outBytes[pos] = outBytes[pos - 1];
+                    outUids[pos] = outUids[pos - 1];
+                }
+                pos--;
+            }
+            if (pos < max) {
+                outBytes[pos] = bytes;
+                outUids[pos] = mUids[slot];
+                if (count < max) count++;
+            }
+        }
+        return count;
+    }
+}
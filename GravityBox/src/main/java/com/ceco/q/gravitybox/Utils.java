@@ -55,6 +55,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 public class Utils {
@@ -510,6 +511,35 @@ public class Utils {
         } 
     } 
 
+    public interface TransferProgressListener {
+        void onProgress(int percent);
+    }
+
+    /**
+     * Copies whole source channel into destination channel letting kernel move the data
+     * @param listener - gets notified whenever completed percentage changes; can be null
+     */
+    public static void transferFile(FileChannel source, FileChannel dest,
+                                    TransferProgressListener listener) throws IOException {
+        final long size = source.size();
+        final long chunkSize = 8 * 1024 * 1024;
+        long position = 0;
+        int lastPercent = -1;
+        while (position < size) {
+            long transferred = source.transferTo(position,
+                    Math.min(chunkSize, size - position), dest);
+            if (transferred <= 0) {
+                throw new IOException("Transfer stalled at " + position + " of " + size + " bytes");
+            }
+            position += transferred;
+            final int percent = (int) (position * 100 / size);
+            if (listener != null && percent != lastPercent) {
+                lastPercent = percent;
+                listener.onProgress(percent);
+            }
+        }
+    }
+
     public static boolean writeAssetToFile(Context context, String assetName, File outFile) {
         try {
             AssetManager am = context.getAssets();
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox.ledcontrol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Case insensitive multi keyword matcher (Aho-Corasick automaton).
+ * Scans text once regardless of number of keywords and without creating
+ * lowercase copies of it. Immutable once compiled.
+ */
+public final class KeywordMatcher {
+
+    // per state: sorted transition chars and corresponding target states
+    private final char[][] mKeys;
+    private final int[][] mTargets;
+    private final int[] mFail;
+    // whether any keyword ends in state (directly or via fail link)
+    private final boolean[] mOutput;
+    // empty keyword is contained in any text
+    private final boolean mMatchesEmpty;
+
+    /**
+     * @param keywordList - comma separated list of keywords
+     * @return matcher or null if list is empty
+     */
+    public static KeywordMatcher compile(String keywordList) {
+        if (keywordList == null || keywordList.trim().isEmpty()) {
+            return null;
+        }
+        return new KeywordMatcher(keywordList.trim().split(","));
+    }
+
+    private KeywordMatcher(String[] keywords) {
+        List<TreeMap<Character,Integer>> trie = new ArrayList<>();
+        List<Boolean> output = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        output.add(false);
+        boolean matchesEmpty = false;
+
+        for (String kw : keywords) {
+            if (kw.isEmpty()) {
+                matchesEmpty = true;
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < kw.length(); i++) {
+                final char c = Character.toLowerCase(kw.charAt(i));
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    output.add(false);
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+            output.set(state, true);
+        }
+
+        final int count = trie.size();
+        mKeys = new char[count][];
+        mTargets = new int[count][];
+        mFail = new int[count];
+        mOutput = new boolean[count];
+        mMatchesEmpty = matchesEmpty;
+        for (int s = 0; s < count; s++) {
+            TreeMap<Character,Integer> edges = trie.get(s);
+            mKeys[s] = new char[edges.size()];
+            mTargets[s] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character,Integer> e : edges.entrySet()) {
+                mKeys[s][i] = e.getKey();
+                mTargets[s][i] = e.getValue();
+                i++;
+            }
+            mOutput[s] = output.get(s);
+        }
+
+        // fail links in breadth first order so shallower states are resolved first
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int target : mTargets[0]) {
+            queue.add(target);
+        }
+        while (!queue.isEmpty()) {
+            final int s = queue.poll();
+            for (int i = 0; i < mKeys[s].length; i++) {
+                final char c = mKeys[s][i];
+                final int target = mTargets[s][i];
+                int f = mFail[s];
+                int next;
+                while ((next = next(f, c)) < 0 && f != 0) {
+                    f = mFail[f];
+                }
+                mFail[target] = next < 0 ? 0 : next;
+                mOutput[target] |= mOutput[mFail[target]];
+                queue.add(target);
+            }
+        }
+    }
+
+    private int next(int state, char c) {
+        final char[] keys = mKeys[state];
+        int lo = 0, hi = keys.length - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (keys[mid] < c) {
+                lo = mid + 1;
+            } else if (keys[mid] > c) {
+                hi = mid - 1;
+            } else {
+                return mTargets[state][mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if text contains any of the keywords ignoring case
+     */
+    public boolean matches(CharSequence text) {
+        if (text == null) return false;
+        if (mMatchesEmpty) return true;
+
+        int state = 0;
+        final int len = text.length();
+        for (int i = 0; i < len; i++) {
+            final char c = Character.toLowerCase(text.charAt(i));
+            int next;
+            while ((next = next(state, c)) < 0 && state != 0) {
+                state = mFail[state];
+            }
+            state = next < 0 ? 0 : next;
+            if (mOutput[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -82,6 +82,7 @@ public class LedSettings {
     private LedMode mLedMode;
     private boolean mQhIgnore;
     private String mQhIgnoreList;
+    private KeywordMatcher mQhIgnoreMatcher;
     private boolean mQhIgnoreInteractive;
     private HeadsUpMode mHeadsUpMode;
     private boolean mHeadsUpDnd;
@@ -123,6 +124,10 @@ public class LedSettings {
         return deserialize(null, pkg, new HashSet<>(list));
     }
 
+    public static LedSettings deserialize(String pkg, Set<String> dataSet) {
+        return deserialize(null, pkg, dataSet);
+    }
+
     private static LedSettings deserialize(Context context, String packageName, Set<String> dataSet) {
         LedSettings ls = new LedSettings(context, packageName);
         if (dataSet == null) {
@@ -424,6 +429,7 @@ public class LedSettings {
 
     protected void setQhIgnoreList(String ignoreList) {
         mQhIgnoreList = ignoreList;
+        mQhIgnoreMatcher = KeywordMatcher.compile(ignoreList);
     }
 
     protected void setQhIgnoreInteractive (boolean ignore) {
@@ -578,6 +584,13 @@ public class LedSettings {
         return mQhIgnoreList;
     }
 
+    /**
+     * @return matcher compiled from QH ignore list or null if list is empty
+     */
+    public KeywordMatcher getQhIgnoreMatcher() {
+        return mQhIgnoreMatcher;
+    }
+
     public boolean getQhIgnoreInteractive() {
         return mQhIgnoreInteractive;
     }
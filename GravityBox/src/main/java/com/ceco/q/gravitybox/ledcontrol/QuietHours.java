@@ -14,18 +14,18 @@
  */
 package com.ceco.q.gravitybox.ledcontrol;
 
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
 import java.util.UUID;
 
 import com.ceco.q.gravitybox.ModLedControl;
-import com.ceco.q.gravitybox.Utils;
 
 import android.app.Notification;
 import android.content.SharedPreferences;
@@ -144,6 +144,11 @@ public class QuietHours {
         }
     }
 
+    private static final int MINUTES_PER_DAY = 1440;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    // bounds validity of cached active range so time zone changes get picked up
+    private static final long MAX_ACTIVE_RANGE_VALIDITY = 3600000;
+
     private static final List<String> NOTIF_TEXT_FIELDS = new ArrayList<>(Arrays.asList(
             "android.title","android.text","android.subText","android.infoText",
             "android.summaryText","android.bigText"));
@@ -159,6 +164,13 @@ public class QuietHours {
     private boolean muteSystemVibe;
     private Set<String> ringerWhitelist;
     private Set<Range> ranges;
+    // weekly timeline: segment i spans minutes of week from segmentStart[i]
+    // up to segmentStart[i+1] and has segmentRange[i] active (or null)
+    private int[] segmentStart;
+    private Range[] segmentRange;
+    private Range cachedRange;
+    private long cachedRangeTime;
+    private long cachedRangeValidUntil;
 
     public QuietHours(Bundle prefs) {
         uncLocked = prefs.getBoolean(QuietHoursActivity.EXTRA_QH_LOCKED);
@@ -177,6 +189,7 @@ public class QuietHours {
                 ranges.add(Range.parse(new HashSet<>(prefs.getStringArrayList(key))));
             }
         }
+        compileRanges();
     }
 
     public QuietHours(SharedPreferences prefs) {
@@ -198,6 +211,61 @@ public class QuietHours {
                 ranges.add(Range.parse(new HashSet<>(prefs.getStringSet(key, null))));
             }
         }
+        compileRanges();
+    }
+
+    // automatic mode with given ranges only
+    QuietHours(Set<Range> ranges) {
+        enabled = true;
+        mode = Mode.AUTO;
+        muteSystemSounds = new HashSet<>();
+        ringerWhitelist = new HashSet<>();
+        this.ranges = ranges;
+        compileRanges();
+    }
+
+    private void compileRanges() {
+        // first range in iteration order wins when more of them overlap
+        Range[] timeline = new Range[MINUTES_PER_WEEK];
+        for (Range range : ranges) {
+            for (int day = 1; day <= 7; day++) {
+                if (!range.days.contains(String.valueOf(day))) continue;
+                final int dayStart = (day - 1) * MINUTES_PER_DAY;
+                if (range.endsNextDay()) {
+                    markTimeline(timeline, range, dayStart + range.startTime,
+                            dayStart + MINUTES_PER_DAY);
+                    // continues past midnight into following day
+                    final int nextDayStart = (day % 7) * MINUTES_PER_DAY;
+                    markTimeline(timeline, range, nextDayStart, nextDayStart + range.endTime);
+                } else {
+                    markTimeline(timeline, range, dayStart + range.startTime,
+                            dayStart + range.endTime);
+                }
+            }
+        }
+
+        int count = 1;
+        for (int i = 1; i < MINUTES_PER_WEEK; i++) {
+            if (timeline[i] != timeline[i - 1]) count++;
+        }
+        segmentStart = new int[count];
+        segmentRange = new Range[count];
+        segmentRange[0] = timeline[0];
+        for (int i = 1, seg = 0; i < MINUTES_PER_WEEK; i++) {
+            if (timeline[i] != timeline[i - 1]) {
+                seg++;
+                segmentStart[seg] = i;
+                segmentRange[seg] = timeline[i];
+            }
+        }
+    }
+
+    private static void markTimeline(Range[] timeline, Range range, int from, int to) {
+        for (int i = Math.max(from, 0); i < Math.min(to, MINUTES_PER_WEEK); i++) {
+            if (timeline[i] == null) {
+                timeline[i] = range;
+            }
+        }
     }
 
     public boolean quietHoursActive(LedSettings ls, Notification n, boolean userPresent) {
@@ -209,20 +277,16 @@ public class QuietHours {
 
         if (ls.getEnabled() && ls.getQhIgnore()) {
             boolean defaultIgnoreResult = (interactive && userPresent) && !ls.getQhIgnoreInteractive();
-            if (ls.getQhIgnoreList() == null || ls.getQhIgnoreList().trim().isEmpty()) {
+            KeywordMatcher matcher = ls.getQhIgnoreMatcher();
+            if (matcher == null) {
                 if (ModLedControl.DEBUG) ModLedControl.log("QH ignored for all notifications");
                 return defaultIgnoreResult;
             } else {
-                List<CharSequence> notifTexts = getNotificationTexts(n);
-                String[] keywords = ls.getQhIgnoreList().trim().split(",");
-                boolean ignore = false;
-                for (String kw : keywords) {
-                    kw = kw.toLowerCase(Locale.getDefault());
-                    ignore |= n.tickerText != null && n.tickerText.toString()
-                            .toLowerCase(Locale.getDefault()).contains(kw);
-                    for (CharSequence notifText : notifTexts) {
-                        ignore |= notifText.toString().toLowerCase(Locale.getDefault()).contains(kw);
-                    }
+                boolean ignore = matcher.matches(n.tickerText);
+                for (int i = 0; i < NOTIF_TEXT_FIELDS.size() && !ignore; i++) {
+                    CharSequence notifText = n.extras.getCharSequence(NOTIF_TEXT_FIELDS.get(i));
+                    if (ModLedControl.DEBUG && notifText != null) ModLedControl.log("Notif text: " + notifText);
+                    ignore = matcher.matches(notifText);
                 }
                 if (ModLedControl.DEBUG) ModLedControl.log("QH ignore list contains keyword?: " + ignore);
                 return (ignore ? defaultIgnoreResult : (quietHoursActive() || (interactive && userPresent)));
@@ -245,26 +309,43 @@ public class QuietHours {
     public Range getActiveRange() {
         if (uncLocked || !enabled || mode != Mode.AUTO) return null;
 
+        return getActiveRange(System.currentTimeMillis());
+    }
+
+    synchronized Range getActiveRange(long now) {
+        if (now >= cachedRangeTime && now < cachedRangeValidUntil) {
+            return cachedRange;
+        }
+
         Calendar c = new GregorianCalendar();
-        c.setTimeInMillis(System.currentTimeMillis());
+        c.setTimeInMillis(now);
         int curMin = c.get(Calendar.HOUR_OF_DAY) * 60 + c.get(Calendar.MINUTE);
         int curDay = c.get(Calendar.DAY_OF_WEEK);
-        int prevDay = (curDay == 1 ? 7 : curDay - 1);
-
-        for (Range range : ranges) {
-            boolean active = false;
-            if (range.endsNextDay()) {
-                active = (curMin >= range.startTime && range.days.contains(String.valueOf(curDay)) ||
-                    (curMin < range.endTime && range.days.contains(String.valueOf(prevDay))));
-            } else {
-                active = range.days.contains(String.valueOf(curDay));
-            }
-            if (active && Utils.isTimeOfDayInRange(c.getTimeInMillis(), range.startTime, range.endTime)) {
-                return range;
-            }
+        int minuteOfWeek = (curDay - 1) * MINUTES_PER_DAY + curMin;
+
+        int seg = Arrays.binarySearch(segmentStart, minuteOfWeek);
+        if (seg < 0) seg = -seg - 2;
+        int segEnd = (seg + 1 < segmentStart.length ?
+                segmentStart[seg + 1] : MINUTES_PER_WEEK);
+
+        // segment end; wall clock runs with elapsed time until next offset transition
+        long validUntil = now - c.get(Calendar.SECOND) * 1000 - c.get(Calendar.MILLISECOND) +
+                (segEnd - minuteOfWeek) * 60000L;
+        validUntil = Math.min(validUntil, now + MAX_ACTIVE_RANGE_VALIDITY);
+        // wall clock jumps at DST transition so minute of week has to be evaluated again
+        ZoneOffsetTransition transition = c.getTimeZone().toZoneId().getRules()
+                .nextTransition(Instant.ofEpochMilli(now));
+        if (transition != null) {
+            validUntil = Math.min(validUntil, transition.toEpochSecond() * 1000);
         }
 
-        return null;
+        cachedRange = segmentRange[seg];
+        cachedRangeTime = now;
+        cachedRangeValidUntil = validUntil;
+        if (ModLedControl.DEBUG) ModLedControl.log("QH active range: " +
+                (cachedRange == null ? "none" : cachedRange.id) +
+                "; valid for " + (cachedRangeValidUntil - now) + "ms");
+        return cachedRange;
     }
 
     public boolean shouldMuteLed() {
@@ -316,21 +397,4 @@ public class QuietHours {
         }
         return ringerWhitelist;
     }
-
-    private List<CharSequence> getNotificationTexts(Notification notification) {
-        List<CharSequence> texts = new ArrayList<>();
-
-        for (String extra : NOTIF_TEXT_FIELDS) {
-            CharSequence cs = notification.extras.getCharSequence(extra);
-            if (cs != null) texts.add(cs);
-        }
-
-        if (ModLedControl.DEBUG) {
-            for (CharSequence text : texts) {
-                ModLedControl.log("Notif text: " + text);
-            }
-        }
-
-        return texts;
-    }
 }
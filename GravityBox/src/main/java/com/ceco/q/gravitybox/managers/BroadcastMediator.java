@@ -14,15 +14,19 @@
  */
 package com.ceco.q.gravitybox.managers;
 
+import android.Manifest;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.SystemClock;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.robv.android.xposed.XposedBridge;
 
@@ -30,6 +34,13 @@ public class BroadcastMediator {
     public static final String TAG="GB:BroadcastMediator";
     private static boolean DEBUG = false;
 
+    /**
+     * Diagnostic broadcast making the mediator and registered stats dumpers write their stats
+     * to log. Accepted only from senders holding DUMP permission, e.g.
+     * adb shell am broadcast -a gravitybox.intent.action.DUMP_STATS
+     */
+    public static final String ACTION_DUMP_STATS = "gravitybox.intent.action.DUMP_STATS";
+
     private static void log(String msg) {
         XposedBridge.log(TAG + ": " + msg);
     }
@@ -38,31 +49,58 @@ public class BroadcastMediator {
         void onBroadcastReceived(Context context, Intent intent);
     }
 
-    private static class Subscriber {
-        Receiver receiver;
-        List<String> actions;
-        Subscriber(Receiver receiver, List<String> actions) {
-            this.receiver = receiver;
-            this.actions = actions;
-        }
+    private static class DispatchStats {
+        long count;
+        long totalNanos;
+        long maxNanos;
     }
 
+    private static final Receiver[] EMPTY = new Receiver[0];
+    private static final Runnable[] NO_DUMPERS = new Runnable[0];
+
     private Context mContext;
-    private final List<Subscriber> mSubscribers;
+    private Handler mHandler;
+    // action -> receivers; arrays are never modified once published
+    private final Map<String, Receiver[]> mReceivers;
+    private final Map<String, DispatchStats> mStats;
     private final IntentFilter mIntentFilter;
     private boolean mInternalReceiverRegistered;
+    // true while components initialize right after context was received
+    private boolean mStartupInProgress;
+    private boolean mRegistrationPending;
+    // never modified once published
+    private volatile Runnable[] mStatsDumpers = NO_DUMPERS;
 
     BroadcastMediator() {
-        mSubscribers = new ArrayList<>();
+        mReceivers = new ConcurrentHashMap<>();
+        mStats = new ConcurrentHashMap<>();
         mIntentFilter = new IntentFilter();
         if (DEBUG) log("BroadcastMediator created");
     }
 
     void setContext(Context context) {
         if (DEBUG) log("Received context");
-        mContext = context;
-        if (mIntentFilter.countActions() > 0) {
-            registerReceiverInternal();
+        synchronized (mIntentFilter) {
+            mContext = context;
+            mHandler = new Handler(context.getMainLooper());
+            // kept apart from shared receiver so that only privileged senders can trigger dumps
+            mContext.registerReceiver(mDumpReceiver, new IntentFilter(ACTION_DUMP_STATS),
+                    Manifest.permission.DUMP, mHandler);
+            if (mIntentFilter.countActions() > 0) {
+                registerReceiverInternal();
+            }
+            // coalesce re-registrations caused by a burst of subscriptions
+            // from components initializing within the same main looper message
+            mStartupInProgress = true;
+            mHandler.post(() -> {
+                synchronized (mIntentFilter) {
+                    mStartupInProgress = false;
+                    if (mRegistrationPending) {
+                        mRegistrationPending = false;
+                        registerReceiverInternal();
+                    }
+                }
+            });
         }
     }
 
@@ -72,17 +110,27 @@ public class BroadcastMediator {
      * @param actions - actions of interest
      */
     public void subscribe(Receiver receiver, List<String> actions) {
-        synchronized (mSubscribers) {
+        synchronized (mIntentFilter) {
             final int oldActionCount = mIntentFilter.countActions();
-            for (String action : actions) {
+            for (String action : new HashSet<>(actions)) {
                 if (!mIntentFilter.hasAction(action)) {
                     mIntentFilter.addAction(action);
+                    mStats.put(action, new DispatchStats());
                 }
+                Receiver[] receivers = mReceivers.get(action);
+                receivers = receivers == null ? new Receiver[1] :
+                        Arrays.copyOf(receivers, receivers.length + 1);
+                receivers[receivers.length - 1] = receiver;
+                mReceivers.put(action, receivers);
             }
-            mSubscribers.add(new Subscriber(receiver, actions));
             if (DEBUG) log("subscribing receiver: " + receiver);
             if (oldActionCount != mIntentFilter.countActions()) {
-                registerReceiverInternal();
+                if (mStartupInProgress) {
+                    mRegistrationPending = true;
+                } else {
+                    // register right away so no broadcast sent after subscribe() returns is missed
+                    registerReceiverInternal();
+                }
             }
         }
     }
@@ -114,29 +162,88 @@ public class BroadcastMediator {
      */
     public void unsubscribe(Receiver receiver) {
         if (DEBUG) log("unsubscribing receiver: " + receiver);
-        synchronized (mSubscribers) {
-            List<Subscriber> toRemove = mSubscribers.stream()
-                    .filter(s -> s.receiver == receiver)
-                    .collect(Collectors.toList());
-            if (!toRemove.isEmpty()) {
-                mSubscribers.removeAll(toRemove);
+        synchronized (mIntentFilter) {
+            for (Map.Entry<String, Receiver[]> entry : mReceivers.entrySet()) {
+                Receiver[] receivers = entry.getValue();
+                int count = 0;
+                for (Receiver r : receivers) {
+                    if (r != receiver) count++;
+                }
+                if (count == receivers.length) continue;
+                Receiver[] remaining = count == 0 ? EMPTY : new Receiver[count];
+                for (int i = 0, j = 0; i < receivers.length; i++) {
+                    if (receivers[i] != receiver) {
+                        remaining[j++] = receivers[i];
+                    }
+                }
+                entry.setValue(remaining);
             }
         }
     }
 
+    /**
+     * Registers dumper to be run on main thread when ACTION_DUMP_STATS is received
+     */
+    public void addStatsDumper(Runnable dumper) {
+        synchronized (mIntentFilter) {
+            Runnable[] dumpers = Arrays.copyOf(mStatsDumpers, mStatsDumpers.length + 1);
+            dumpers[dumpers.length - 1] = dumper;
+            mStatsDumpers = dumpers;
+        }
+    }
+
+    /**
+     * Writes number of dispatches and time spent in receivers per action to log
+     */
+    public void dumpStats() {
+        StringBuilder buf = new StringBuilder("Dispatch stats:");
+        for (Map.Entry<String, DispatchStats> entry : mStats.entrySet()) {
+            DispatchStats stats = entry.getValue();
+            synchronized (stats) {
+                buf.append("\n  ").append(entry.getKey())
+                        .append(": receivers=").append(mReceivers.get(entry.getKey()).length)
+                        .append("; count=").append(stats.count)
+                        .append("; avg=").append(stats.count == 0 ? 0 :
+                                stats.totalNanos / stats.count / 1000).append("us")
+                        .append("; max=").append(stats.maxNanos / 1000).append("us");
+            }
+        }
+        log(buf.toString());
+    }
+
+    private final BroadcastReceiver mDumpReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            dumpStats();
+            for (Runnable dumper : mStatsDumpers) {
+                dumper.run();
+            }
+        }
+    };
+
     private BroadcastReceiver mReceiverInternal = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            synchronized (mSubscribers) {
-                List<Receiver> toNotify = mSubscribers.stream()
-                        .filter(s -> s.actions.contains(intent.getAction()))
-                        .map(s -> s.receiver)
-                        .collect(Collectors.toList());
-                toNotify.forEach(r -> {
-                    if (DEBUG) log("Notifying listener: " + r +
-                            "; action=" + intent.getAction());
-                    r.onBroadcastReceived(context, intent);
-                });
+            final String action = intent.getAction();
+            if (action == null) return;
+            final Receiver[] receivers = mReceivers.get(action);
+            if (receivers == null) return;
+
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (Receiver r : receivers) {
+                if (DEBUG) log("Notifying listener: " + r +
+                        "; action=" + action);
+                r.onBroadcastReceived(context, intent);
+            }
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+            final DispatchStats stats = mStats.get(action);
+            if (stats != null) {
+                synchronized (stats) {
+                    stats.count++;
+                    stats.totalNanos += elapsed;
+                    stats.maxNanos = Math.max(stats.maxNanos, elapsed);
+                }
             }
         }
     };
@@ -18,7 +18,11 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.ResultReceiver;
 import android.provider.Settings;
 
@@ -27,12 +31,24 @@ import com.ceco.q.gravitybox.ResourceProxy;
 import com.ceco.q.gravitybox.tuner.TuneableItem;
 import com.ceco.q.gravitybox.tuner.TunerBlacklist;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
@@ -53,9 +69,70 @@ public class SysUiTunerManager implements BroadcastMediator.Receiver {
         XposedBridge.log(TAG + ": " + msg);
     }
 
-    private static Map<Category,List<TuneableItem>> sUserItemsCache = new HashMap<>();
+    // overridden user items per category indexed by resource name
+    private static Map<Category,Map<String,TuneableItem>> sUserItemsCache = new EnumMap<>(Category.class);
+
+    private static final int CATALOGUE_VERSION = 1;
+    private static final byte TYPE_BOOLEAN = 0;
+    private static final byte TYPE_INTEGER = 1;
+
+    // Resources of a category available for tuning. Depends only on system build
+    // so it is persisted keyed by build fingerprint and values are read at request time.
+    private static final class Catalogue {
+        final byte[] types;
+        final String[] keys;
+        final int[] resIds;
+
+        Catalogue(byte[] types, String[] keys, int[] resIds) {
+            this.types = types;
+            this.keys = keys;
+            this.resIds = resIds;
+        }
+
+        void write(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(CATALOGUE_VERSION);
+                out.writeUTF(Build.FINGERPRINT);
+                out.writeInt(keys.length);
+                for (int i = 0; i < keys.length; i++) {
+                    out.writeByte(types[i]);
+                    out.writeUTF(keys[i]);
+                    out.writeInt(resIds[i]);
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Unable to rename " + tmp);
+            }
+        }
+
+        static Catalogue read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != CATALOGUE_VERSION ||
+                        !Build.FINGERPRINT.equals(in.readUTF())) {
+                    return null;
+                }
+                final int count = in.readInt();
+                byte[] types = new byte[count];
+                String[] keys = new String[count];
+                int[] resIds = new int[count];
+                for (int i = 0; i < count; i++) {
+                    types[i] = in.readByte();
+                    keys[i] = in.readUTF();
+                    resIds[i] = in.readInt();
+                }
+                return new Catalogue(types, keys, resIds);
+            }
+        }
+    }
 
     private Context mContext;
+    private Handler mWorkerHandler;
+    // accessed from worker thread only
+    private final Map<Category,Catalogue> mCatalogues = new EnumMap<>(Category.class);
 
     SysUiTunerManager(Context context) {
         mContext = context;
@@ -95,50 +172,107 @@ public class SysUiTunerManager implements BroadcastMediator.Receiver {
             if (DEBUG) log("Request for tuneables received");
             ResultReceiver receiver = intent.getParcelableExtra("receiver");
             Category category = Category.valueOf(intent.getStringExtra(EXTRA_TUNER_CATEGORY));
-            sendTuneables(category, receiver);
+            getWorkerHandler().post(() -> sendTuneables(category, receiver));
         }
     }
 
-    private void sendTuneables(Category category, ResultReceiver receiver) {
+    private Handler getWorkerHandler() {
+        if (mWorkerHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mWorkerHandler = new Handler(thread.getLooper());
+        }
+        return mWorkerHandler;
+    }
+
+    private File getCatalogueFile(Category category) {
+        return new File(mContext.getCacheDir(), "gb_tuneables_" +
+                category.toString().toLowerCase(Locale.US) + ".bin");
+    }
+
+    private Catalogue getCatalogue(Category category) {
+        Catalogue catalogue = mCatalogues.get(category);
+        if (catalogue != null) {
+            return catalogue;
+        }
+
+        File file = getCatalogueFile(category);
+        if (file.exists()) {
+            try {
+                catalogue = Catalogue.read(file);
+                if (DEBUG && catalogue != null) log("Catalogue loaded from " + file);
+            } catch (IOException e) {
+                GravityBox.log(TAG, "Error reading tuneable catalogue: ", e);
+            }
+        }
+        if (catalogue == null) {
+            catalogue = buildCatalogue(category);
+            try {
+                catalogue.write(file);
+                if (DEBUG) log("Catalogue written to " + file);
+            } catch (IOException e) {
+                GravityBox.log(TAG, "Error writing tuneable catalogue: ", e);
+            }
+        }
+        mCatalogues.put(category, catalogue);
+        return catalogue;
+    }
+
+    private Catalogue buildCatalogue(Category category) {
         String pkgName = getPackageNameFor(category);
         Resources res = getResourcesFor(category);
         List<String> classNameList = getResourceClassNamesFor(category);
-        ArrayList<TuneableItem> tiList = new ArrayList<>();
-        Bundle data = new Bundle();
-        Class<?> clazz;
+        List<String> keys = new ArrayList<>();
+        List<Byte> types = new ArrayList<>();
+        List<Integer> resIds = new ArrayList<>();
 
         for (String className : classNameList) {
-            // bools
-            clazz = XposedHelpers.findClassIfExists(className + ".bool",
-                    mContext.getClassLoader());
-            if (clazz != null) {
+            for (byte type : new byte[] { TYPE_BOOLEAN, TYPE_INTEGER }) {
+                final String resType = (type == TYPE_BOOLEAN ? "bool" : "integer");
+                Class<?> clazz = XposedHelpers.findClassIfExists(className + "." + resType,
+                        mContext.getClassLoader());
+                if (clazz == null) continue;
                 for (Field f : clazz.getDeclaredFields()) {
-                    if (TunerBlacklist.isBlacklisted(category, f.getName()))
-                        continue;
-                    try {
-                        TuneableItem ti = new TuneableItem(Boolean.class, category, f.getName(),
-                                res.getBoolean(res.getIdentifier(f.getName(), "bool", pkgName)));
-                        tiList.add(ti);
-                    } catch (Resources.NotFoundException ignore) {
+                    int resId = res.getIdentifier(f.getName(), resType, pkgName);
+                    if (resId != 0) {
+                        keys.add(f.getName());
+                        types.add(type);
+                        resIds.add(resId);
                     }
                 }
             }
+        }
 
-            // integers
-            clazz = XposedHelpers.findClassIfExists(className + ".integer",
-                    mContext.getClassLoader());
-            if (clazz != null) {
-                for (Field f : clazz.getDeclaredFields()) {
-                    if (TunerBlacklist.isBlacklisted(category, f.getName()))
-                        continue;
-                    try {
-                        TuneableItem ti = new TuneableItem(Integer.class, category, f.getName(),
-                                res.getInteger(res.getIdentifier(
-                                        f.getName(), "integer", pkgName)));
-                        tiList.add(ti);
-                    } catch (Resources.NotFoundException ignore) {
-                    }
+        final int count = keys.size();
+        byte[] typeArray = new byte[count];
+        int[] resIdArray = new int[count];
+        for (int i = 0; i < count; i++) {
+            typeArray[i] = types.get(i);
+            resIdArray[i] = resIds.get(i);
+        }
+        if (DEBUG) log("Catalogue for " + category + " built with " + count + " items");
+        return new Catalogue(typeArray, keys.toArray(new String[0]), resIdArray);
+    }
+
+    private void sendTuneables(Category category, ResultReceiver receiver) {
+        Resources res = getResourcesFor(category);
+        Catalogue catalogue = getCatalogue(category);
+        ArrayList<TuneableItem> tiList = new ArrayList<>(catalogue.keys.length);
+        Bundle data = new Bundle();
+
+        for (int i = 0; i < catalogue.keys.length; i++) {
+            final String key = catalogue.keys[i];
+            if (TunerBlacklist.isBlacklisted(category, key))
+                continue;
+            try {
+                if (catalogue.types[i] == TYPE_BOOLEAN) {
+                    tiList.add(new TuneableItem(Boolean.class, category, key,
+                            res.getBoolean(catalogue.resIds[i])));
+                } else {
+                    tiList.add(new TuneableItem(Integer.class, category, key,
+                            res.getInteger(catalogue.resIds[i])));
                 }
+            } catch (Resources.NotFoundException ignore) {
             }
         }
 
@@ -188,46 +322,55 @@ public class SysUiTunerManager implements BroadcastMediator.Receiver {
 
     // Must be called from Zygote
     public static void initUserItemsCache(final XSharedPreferences prefs) {
-        for (Category category : new Category[] { Category.FRAMEWORK, Category.SYSTEMUI}) {
-            List<TuneableItem> list = new ArrayList<>();
-            Map<String, ?> prefMap = prefs.getAll();
-            for (Map.Entry<String, ?> pref : prefMap.entrySet()) {
-                if (pref.getKey().startsWith(category.toString() + ":") ||
-                        pref.getKey().startsWith("tuneable:")) {
-                    TuneableItem item = TuneableItem.createUserInstance(pref.getKey(), prefs);
-                    if (item != null && item.getCategory() == category && item.isOverridden() &&
-                            !TunerBlacklist.isBlacklisted(category, item.getKey())) {
-                        if (DEBUG) log("getUserItemList: new tuneable item added: category=" + category +
-                                "; key=" + item.getKey() +
-                                "; overridden=" + item.isOverridden() +
-                                "; userValue=" + item.getUserValue());
-                        list.add(item);
-                    }
-                }
+        for (Category category : Category.values()) {
+            sUserItemsCache.put(category, new LinkedHashMap<>());
+        }
+        for (String prefKey : prefs.getAll().keySet()) {
+            final int sep = prefKey.indexOf(':');
+            if (sep < 0) continue;
+            final String prefix = prefKey.substring(0, sep);
+            final boolean generic = prefix.equals("tuneable");
+            if (!generic && !isCategoryName(prefix)) continue;
+
+            TuneableItem item = TuneableItem.createUserInstance(prefKey, prefs);
+            if (item == null) continue;
+            Category category = item.getCategory();
+            // category specific keys can only hold items of that category
+            if ((generic || category.toString().equals(prefix)) && item.isOverridden() &&
+                    !TunerBlacklist.isBlacklisted(category, item.getKey())) {
+                if (DEBUG) log("getUserItemList: new tuneable item added: category=" + category +
+                        "; key=" + item.getKey() +
+                        "; overridden=" + item.isOverridden() +
+                        "; userValue=" + item.getUserValue());
+                sUserItemsCache.get(category).putIfAbsent(item.getKey(), item);
             }
-            sUserItemsCache.put(category, list);
         }
     }
 
-    public static void addUserItemKeysToList(Category category, List<String> list) {
-        if (sUserItemsCache.containsKey(category) && sUserItemsCache.get(category) != null) {
-            for (TuneableItem item : sUserItemsCache.get(category)) {
-                if (!list.contains(item.getKey())) {
-                    list.add(item.getKey());
-                }
+    private static boolean isCategoryName(String name) {
+        for (Category category : Category.values()) {
+            if (category.toString().equals(name)) {
+                return true;
             }
         }
+        return false;
     }
 
-    private static TuneableItem findUserItemByKey(Category category, String key) {
-        if (sUserItemsCache.containsKey(category) && sUserItemsCache.get(category) != null) {
-            for (TuneableItem item : sUserItemsCache.get(category)) {
-                if (item.getKey().equals(key)) {
-                    return item;
+    public static void addUserItemKeysToList(Category category, List<String> list) {
+        Map<String,TuneableItem> items = sUserItemsCache.get(category);
+        if (items != null) {
+            Set<String> keys = new HashSet<>(list);
+            for (String key : items.keySet()) {
+                if (keys.add(key)) {
+                    list.add(key);
                 }
             }
         }
-        return null;
+    }
+
+    private static TuneableItem findUserItemByKey(Category category, String key) {
+        Map<String,TuneableItem> items = sUserItemsCache.get(category);
+        return (items != null ? items.get(key) : null);
     }
 
     public static boolean onIntercept(ResourceProxy.ResourceSpec spec) {
@@ -48,6 +48,8 @@ public class QuickRecordTile extends QsTile {
     private MediaPlayer mPlayer;
     private Handler mHandler;
     private int mAudioQuality;
+    private int mAudioBitrate;
+    private boolean mDirectWrite;
     private long mAutoStopDelay;
     private GravityBoxResultReceiver mCurrentStateReceiver;
     private boolean mIsReceiving;
@@ -136,6 +138,9 @@ public class QuickRecordTile extends QsTile {
 
         mAudioQuality = Integer.valueOf(mPrefs.getString(GravityBoxSettings.PREF_KEY_QUICKRECORD_QUALITY,
                 String.valueOf(RecordingService.DEFAULT_SAMPLING_RATE)));
+        mAudioBitrate = Integer.valueOf(mPrefs.getString(GravityBoxSettings.PREF_KEY_QUICKRECORD_BITRATE,
+                String.valueOf(RecordingService.DEFAULT_BITRATE)));
+        mDirectWrite = mPrefs.getBoolean(GravityBoxSettings.PREF_KEY_QUICKRECORD_DIRECT_WRITE, false);
         mAutoStopDelay = mPrefs.getInt(GravityBoxSettings.PREF_KEY_QUICKRECORD_AUTOSTOP, 1) * 3600000;
     }
 
@@ -151,6 +156,13 @@ public class QuickRecordTile extends QsTile {
             if (intent.hasExtra(GravityBoxSettings.EXTRA_QR_AUTOSTOP)) {
                 mAutoStopDelay = intent.getIntExtra(GravityBoxSettings.EXTRA_QR_AUTOSTOP, 1) * 3600000;
             }
+            if (intent.hasExtra(GravityBoxSettings.EXTRA_QR_BITRATE)) {
+                mAudioBitrate = intent.getIntExtra(GravityBoxSettings.EXTRA_QR_BITRATE,
+                        RecordingService.DEFAULT_BITRATE);
+            }
+            if (intent.hasExtra(GravityBoxSettings.EXTRA_QR_DIRECT_WRITE)) {
+                mDirectWrite = intent.getBooleanExtra(GravityBoxSettings.EXTRA_QR_DIRECT_WRITE, false);
+            }
         }
     }
 
@@ -228,6 +240,8 @@ public class QuickRecordTile extends QsTile {
         Intent si = new Intent(mGbContext, RecordingService.class);
         si.setAction(RecordingService.ACTION_RECORDING_START);
         si.putExtra(RecordingService.EXTRA_SAMPLING_RATE, mAudioQuality);
+        si.putExtra(RecordingService.EXTRA_BITRATE, mAudioBitrate);
+        si.putExtra(RecordingService.EXTRA_DIRECT_WRITE, mDirectWrite);
         mGbContext.startService(si);
     }
 
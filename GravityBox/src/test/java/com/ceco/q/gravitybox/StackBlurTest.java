@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class StackBlurTest {
+
+    /**
+     * Naive two-pass triangle filter with edge pixels repeated:
+     * rows first, then columns of row-blurred image, each pass into separate array
+     */
+    private static int[] referenceBlur(int[] pixels, int width, int height, int radius) {
+        if (radius < 1) return pixels.clone();
+        int[] rows = new int[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                rows[y * width + x] = triangle(pixels, y * width, 1, width, x, radius);
+            }
+        }
+        int[] out = new int[pixels.length];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                out[y * width + x] = triangle(rows, x, width, height, y, radius);
+            }
+        }
+        return out;
+    }
+
+    private static int triangle(int[] pix, int offset, int step, int len, int pos, int radius) {
+        final int divSum = (radius + 1) * (radius + 1);
+        long a = 0, r = 0, g = 0, b = 0;
+        for (int i = -radius; i <= radius; i++) {
+            final int p = pix[offset + Math.min(Math.max(pos + i, 0), len - 1) * step];
+            final int weight = radius + 1 - Math.abs(i);
+            a += (p >>> 24) * weight;
+            r += ((p >> 16) & 0xff) * weight;
+            g += ((p >> 8) & 0xff) * weight;
+            b += (p & 0xff) * weight;
+        }
+        return (int) (a / divSum) << 24 | (int) (r / divSum) << 16 |
+                (int) (g / divSum) << 8 | (int) (b / divSum);
+    }
+
+    private static int[] randomPixels(Random rnd, int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = rnd.nextInt();
+        }
+        return pixels;
+    }
+
+    private static void assertSameAsReference(int[] pixels, int width, int height, int radius) {
+        int[] expected = referenceBlur(pixels, width, height, radius);
+        int[] actual = pixels.clone();
+        StackBlur.blur(actual, width, height, radius);
+        assertArrayEquals(width + "x" + height + " radius " + radius, expected, actual);
+    }
+
+    @Test
+    public void matchesReferenceForRandomImages() {
+        Random rnd = new Random(1);
+        final int[][] sizes = { { 1, 1 }, { 1, 7 }, { 7, 1 }, { 2, 2 }, { 3, 5 },
+                { 16, 9 }, { 31, 17 }, { 64, 48 } };
+        for (int[] size : sizes) {
+            for (int radius = 1; radius <= 25; radius++) {
+                assertSameAsReference(randomPixels(rnd, size[0] * size[1]), size[0], size[1], radius);
+            }
+        }
+    }
+
+    @Test
+    public void lastPixelOfLineInPlace() {
+        // lines shorter than radius, so every read past current position is clamped to last pixel
+        // which gets overwritten as the final step of each line
+        for (int radius = 1; radius <= 4; radius++) {
+            assertSameAsReference(new int[] { 0xff000000, 0xffffffff }, 2, 1, radius);
+            assertSameAsReference(new int[] { 0xff000000, 0xffffffff }, 1, 2, radius);
+            assertSameAsReference(new int[] { 0x00000000, 0x00000000, 0xffff8000 }, 3, 1, radius);
+            assertSameAsReference(new int[] { 0x00000000, 0x00000000, 0xffff8000 }, 1, 3, radius);
+        }
+        // high contrast at right and bottom edge
+        int[] pixels = new int[8 * 8];
+        for (int i = 0; i < 8; i++) {
+            pixels[i * 8 + 7] = 0xffffffff;
+            pixels[7 * 8 + i] = 0xffffffff;
+        }
+        assertSameAsReference(pixels, 8, 8, 3);
+    }
+
+    @Test
+    public void uniformImageStaysUniform() {
+        int[] pixels = new int[20 * 10];
+        Arrays.fill(pixels, 0x80402010);
+        StackBlur.blur(pixels, 20, 10, 7);
+        int[] expected = new int[20 * 10];
+        Arrays.fill(expected, 0x80402010);
+        assertArrayEquals(expected, pixels);
+    }
+
+    @Test
+    public void radiusBelowOneLeavesPixelsUntouched() {
+        int[] pixels = randomPixels(new Random(2), 12);
+        int[] expected = pixels.clone();
+        StackBlur.blur(pixels, 4, 3, 0);
+        StackBlur.blur(pixels, 4, 3, -1);
+        assertArrayEquals(expected, pixels);
+    }
+}
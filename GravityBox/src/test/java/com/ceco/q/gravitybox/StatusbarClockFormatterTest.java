@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatusbarClockFormatterTest {
+
+    private static final long SECOND = 1000;
+    private static final long DAY = 24 * 3600 * SECOND;
+
+    private static final StatusbarClockFormatter.TimePatternProvider PATTERNS = (locale, is24) ->
+            is24 ? "HH:mm:ss" : (locale.equals(Locale.CHINA) ? "ah:mm:ss" : "h:mm:ss a");
+
+    private Locale mDefaultLocale;
+    private TimeZone mDefaultTimeZone;
+
+    private StatusbarClockFormatter mFormatter;
+    private boolean mAmPmHide;
+    private String mShowDate;
+    private int mShowDow;
+
+    @Before
+    public void setUp() {
+        mDefaultLocale = Locale.getDefault();
+        mDefaultTimeZone = TimeZone.getDefault();
+        Locale.setDefault(Locale.US);
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Prague"));
+        mFormatter = new StatusbarClockFormatter(PATTERNS);
+        setAmPmHide(false);
+        setShowDate("disabled");
+        setShowDow(GravityBoxSettings.DOW_DISABLED);
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mDefaultLocale);
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    private void setAmPmHide(boolean hide) {
+        mAmPmHide = hide;
+        mFormatter.setAmPmHide(hide);
+    }
+
+    private void setShowDate(String showDate) {
+        mShowDate = showDate;
+        mFormatter.setShowDate(showDate);
+    }
+
+    private void setShowDow(int showDow) {
+        mShowDow = showDow;
+        mFormatter.setShowDow(showDow);
+    }
+
+    private static long timeOf(int year, int month, int day, int hour, int minute, int second) {
+        Calendar c = new GregorianCalendar();
+        c.clear();
+        c.set(year, month, day, hour, minute, second);
+        return c.getTimeInMillis();
+    }
+
+    // what system clock shows before being altered
+    private static String systemTime(long now, boolean is24) {
+        return new SimpleDateFormat(is24 ? "H:mm" : "h:mm a").format(new Date(now));
+    }
+
+    /**
+     * Clock text and span bounds as built by formatting code before formatting state was reused
+     */
+    private String reference(long now, boolean withPrefix, boolean withSeconds, boolean is24) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getDefault());
+        calendar.setTimeInMillis(now);
+        String clockText = systemTime(now, is24);
+        if (withSeconds) {
+            clockText = new SimpleDateFormat(PATTERNS.getSecondsPattern(Locale.getDefault(), is24))
+                    .format(calendar.getTime());
+        }
+        String amPm = calendar.getDisplayName(Calendar.AM_PM, Calendar.SHORT, Locale.getDefault());
+        boolean amPmFirst = Locale.getDefault().equals(Locale.TAIWAN) ||
+                Locale.getDefault().equals(Locale.CHINA);
+        int amPmIndex = clockText.indexOf(amPm);
+        if (mAmPmHide && amPmIndex != -1) {
+            clockText = clockText.replace(amPm, "").trim();
+            amPmIndex = -1;
+        } else if (!mAmPmHide && !is24 && amPmIndex == -1) {
+            if (amPmFirst) {
+                clockText = amPm + " " + clockText;
+            } else {
+                clockText += " " + amPm;
+            }
+            amPmIndex = clockText.indexOf(amPm);
+        }
+        String date = "";
+        if (!mShowDate.equals("disabled") && withPrefix) {
+            SimpleDateFormat df = (SimpleDateFormat) SimpleDateFormat.getDateInstance(SimpleDateFormat.SHORT);
+            String pattern = mShowDate.equals("localized") ?
+                    df.toLocalizedPattern().replaceAll(".?[Yy].?", "") : mShowDate;
+            date = new SimpleDateFormat(pattern, Locale.getDefault()).format(calendar.getTime()) + " ";
+        }
+        String dow = "";
+        if (mShowDow != GravityBoxSettings.DOW_DISABLED && withPrefix) {
+            dow = calendar.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.SHORT, Locale.getDefault());
+            if (mShowDow == GravityBoxSettings.DOW_LOWERCASE) {
+                dow = dow.toLowerCase(Locale.getDefault());
+            } else if (mShowDow == GravityBoxSettings.DOW_UPPERCASE) {
+                dow = dow.toUpperCase(Locale.getDefault());
+            }
+            dow += " ";
+        }
+        final int prefixLength = dow.length() + date.length();
+        int amPmStart = -1;
+        int amPmEnd = -1;
+        if (amPmIndex > -1) {
+            amPmStart = prefixLength + amPmIndex;
+            if (!amPmFirst && Character.isWhitespace(clockText.charAt(amPmIndex - 1))) {
+                amPmStart--;
+            }
+            amPmEnd = prefixLength + amPmIndex + amPm.length();
+        }
+        return describe(dow + date + clockText, prefixLength, amPmStart, amPmEnd);
+    }
+
+    private String format(long now, boolean withPrefix, boolean withSeconds, boolean is24) {
+        CharSequence text = mFormatter.format(now, systemTime(now, is24), withPrefix, withSeconds, is24);
+        return describe(text.toString(), mFormatter.getPrefixLength(),
+                mFormatter.getAmPmStart(), mFormatter.getAmPmEnd());
+    }
+
+    private static String describe(String text, int prefixLength, int amPmStart, int amPmEnd) {
+        return "'" + text + "' prefix=" + prefixLength + " amPm=" + amPmStart + ".." + amPmEnd;
+    }
+
+    private void assertSameAsReference(long from, long to, boolean withPrefix,
+                                       boolean withSeconds, boolean is24) {
+        for (long t = from; t <= to; t += SECOND) {
+            assertEquals("at " + new Date(t) + " in " + Locale.getDefault(),
+                    reference(t, withPrefix, withSeconds, is24),
+                    format(t, withPrefix, withSeconds, is24));
+        }
+    }
+
+    private void assertSameAsReference(long from, long to) {
+        assertSameAsReference(from, to, true, true, false);
+        assertSameAsReference(from, to, true, true, true);
+        assertSameAsReference(from, to, true, false, false);
+        // notification panel clock
+        assertSameAsReference(from, to, false, false, false);
+    }
+
+    @Test
+    public void minuteRollover() {
+        // includes AM to PM switch
+        long t = timeOf(2020, Calendar.MARCH, 4, 11, 59, 55);
+        assertSameAsReference(t, t + 10 * SECOND);
+        assertEquals("'12:00:02 PM' prefix=0 amPm=8..11", format(t + 7 * SECOND, true, true, false));
+
+        setAmPmHide(true);
+        assertSameAsReference(t, t + 10 * SECOND);
+        assertEquals("'12:00:03' prefix=0 amPm=-1..-1", format(t + 8 * SECOND, true, true, false));
+    }
+
+    @Test
+    public void dayRollover() {
+        long t = timeOf(2020, Calendar.DECEMBER, 31, 23, 59, 55);
+        setShowDow(GravityBoxSettings.DOW_UPPERCASE);
+        setShowDate("localized");
+        assertSameAsReference(t, t + 10 * SECOND);
+        assertEquals("'FRI 1/1 12:00:01 AM' prefix=8 amPm=16..19", format(t + 6 * SECOND, true, true, false));
+
+        setShowDow(GravityBoxSettings.DOW_LOWERCASE);
+        setShowDate("dd.MM.");
+        assertSameAsReference(t, t + 10 * SECOND);
+        assertEquals("'thu 31.12. 11:59:59 PM' prefix=11 amPm=19..22", format(t + 4 * SECOND, true, true, false));
+
+        setShowDate("disabled");
+        setShowDow(GravityBoxSettings.DOW_STANDARD);
+        assertSameAsReference(t, t + 10 * SECOND);
+    }
+
+    @Test
+    public void localeChange() {
+        setShowDow(GravityBoxSettings.DOW_STANDARD);
+        setShowDate("localized");
+        long t = timeOf(2020, Calendar.JUNE, 15, 21, 30, 10);
+        Locale[] locales = new Locale[] { Locale.GERMANY, Locale.CHINA, new Locale("ar", "EG"),
+                new Locale("hi", "IN"), Locale.FRANCE, Locale.US };
+        // within the same minute so that cached seconds text gets rebuilt for new locale
+        for (Locale locale : locales) {
+            Locale.setDefault(locale);
+            assertSameAsReference(t, t + 5 * SECOND);
+        }
+        Locale.setDefault(Locale.CHINA);
+        assertEquals(reference(t, true, true, false), format(t, true, true, false));
+        // AM/PM goes first without preceding space
+        assertTrue(format(t, true, true, false).endsWith("prefix=8 amPm=8..10"));
+    }
+
+    @Test
+    public void timeZoneChange() {
+        long t = timeOf(2020, Calendar.JUNE, 15, 21, 30, 10);
+        assertSameAsReference(t, t + 2 * SECOND);
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        mFormatter.invalidate();
+        assertSameAsReference(t, t + 2 * SECOND);
+    }
+
+    @Test
+    public void wholeDayMatchesReference() {
+        setShowDow(GravityBoxSettings.DOW_STANDARD);
+        setShowDate("localized");
+        // one tick per second including DST change
+        long t = timeOf(2020, Calendar.MARCH, 29, 0, 0, 0);
+        assertSameAsReference(t, t + DAY, true, true, false);
+    }
+
+    @Test
+    public void secondTicksDoNotAllocate() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMx = (com.sun.management.ThreadMXBean) mx;
+        Assume.assumeTrue(threadMx.isThreadAllocatedMemorySupported());
+        threadMx.setThreadAllocatedMemoryEnabled(true);
+
+        setShowDow(GravityBoxSettings.DOW_STANDARD);
+        setShowDate("localized");
+        final String origText = "9:41 PM";
+        long t = timeOf(2020, Calendar.JUNE, 15, 0, 0, 0);
+        // warm up
+        for (int i = 0; i < 2 * 86400; i++) {
+            mFormatter.format(t + i * SECOND, origText, true, true, false);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        t += 2 * DAY;
+        // starts new day and minute
+        mFormatter.format(t, origText, true, true, false);
+        long allocated = threadMx.getThreadAllocatedBytes(threadId);
+        // seconds within single minute
+        for (int i = 1; i < 60; i++) {
+            mFormatter.format(t + i * SECOND, origText, true, true, false);
+        }
+        allocated = threadMx.getThreadAllocatedBytes(threadId) - allocated;
+        assertTrue("allocated " + allocated + " bytes within minute", allocated < 1024);
+
+        // simulated day of ticks: only full format once per minute and date once per day
+        t += DAY;
+        allocated = threadMx.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 86400; i++) {
+            mFormatter.format(t + i * SECOND, origText, true, true, false);
+        }
+        allocated = threadMx.getThreadAllocatedBytes(threadId) - allocated;
+        assertTrue("allocated " + allocated + " bytes per day", allocated < 1440 * 1024);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficSamplerTest {
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private static byte[] readFixture(String name) throws IOException {
+        try (InputStream in = TrafficSamplerTest.class.getResourceAsStream("/traffic/" + name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static long[] ifaceCounters(long wifiRx, long wifiTx, long mobileRx, long mobileTx,
+                                        long vpnRx, long vpnTx, long otherRx, long otherTx) {
+        long[] c = new long[TrafficSampler.IFACE_CLASS_COUNT * 2];
+        c[TrafficSampler.IFACE_WIFI * 2 + TrafficSampler.RX] = wifiRx;
+        c[TrafficSampler.IFACE_WIFI * 2 + TrafficSampler.TX] = wifiTx;
+        c[TrafficSampler.IFACE_MOBILE * 2 + TrafficSampler.RX] = mobileRx;
+        c[TrafficSampler.IFACE_MOBILE * 2 + TrafficSampler.TX] = mobileTx;
+        c[TrafficSampler.IFACE_VPN * 2 + TrafficSampler.RX] = vpnRx;
+        c[TrafficSampler.IFACE_VPN * 2 + TrafficSampler.TX] = vpnTx;
+        c[TrafficSampler.IFACE_OTHER * 2 + TrafficSampler.RX] = otherRx;
+        c[TrafficSampler.IFACE_OTHER * 2 + TrafficSampler.TX] = otherTx;
+        return c;
+    }
+
+    @Test
+    public void parseSkipsHeaderAndLoopbackAndExcludesVpnFromTotals() throws IOException {
+        byte[] buf = readFixture("iface_stat_fmt");
+        long[] rxTx = new long[2];
+        long[] ifaceRxTx = new long[TrafficSampler.IFACE_CLASS_COUNT * 2];
+
+        assertTrue(TrafficSampler.parse(buf, buf.length, rxTx, ifaceRxTx));
+
+        assertEquals(1000 + 3000 + 11, rxTx[TrafficSampler.RX]);
+        assertEquals(200 + 400 + 22, rxTx[TrafficSampler.TX]);
+        assertArrayEquals(ifaceCounters(1000, 200, 3000, 400, 700, 150, 11, 22), ifaceRxTx);
+    }
+
+    @Test
+    public void parseWithoutPerInterfaceCounters() throws IOException {
+        byte[] buf = readFixture("iface_stat_fmt");
+        long[] rxTx = new long[] { -1, -1 };
+
+        assertTrue(TrafficSampler.parse(buf, buf.length, rxTx, null));
+
+        assertEquals(4011, rxTx[TrafficSampler.RX]);
+        assertEquals(622, rxTx[TrafficSampler.TX]);
+    }
+
+    @Test
+    public void parseHandlesMissingTrailingNewline() throws IOException {
+        byte[] buf = readFixture("iface_stat_fmt");
+        long[] rxTx = new long[2];
+
+        // drop final line feed
+        assertTrue(TrafficSampler.parse(buf, buf.length - 1, rxTx, null));
+
+        assertEquals(4011, rxTx[TrafficSampler.RX]);
+        assertEquals(622, rxTx[TrafficSampler.TX]);
+    }
+
+    @Test
+    public void parseRejectsTruncatedLine() throws IOException {
+        byte[] buf = readFixture("iface_stat_fmt_truncated");
+
+        assertFalse(TrafficSampler.parse(buf, buf.length, new long[2], null));
+    }
+
+    @Test
+    public void parseIgnoresBytesBeyondLength() throws IOException {
+        byte[] fixture = readFixture("iface_stat_fmt");
+        byte[] buf = new byte[fixture.length + 64];
+        System.arraycopy(fixture, 0, buf, 0, fixture.length);
+        for (int i = fixture.length; i < buf.length; i++) {
+            buf[i] = '9';
+        }
+        long[] rxTx = new long[2];
+
+        assertTrue(TrafficSampler.parse(buf, fixture.length, rxTx, null));
+
+        assertEquals(4011, rxTx[TrafficSampler.RX]);
+    }
+
+    @Test
+    public void parseEmptyContent() {
+        long[] rxTx = new long[] { 5, 5 };
+
+        assertTrue(TrafficSampler.parse(new byte[0], 0, rxTx, null));
+
+        assertEquals(0, rxTx[TrafficSampler.RX]);
+        assertEquals(0, rxTx[TrafficSampler.TX]);
+    }
+
+    @Test
+    public void parseUidsReportsUntaggedCountersOfCountedInterfaces() throws IOException {
+        byte[] buf = readFixture("stats");
+        final Map<Integer, long[]> uids = new HashMap<>();
+
+        TrafficSampler.parseUids(buf, buf.length, (uid, rx, tx) -> {
+            long[] c = uids.get(uid);
+            if (c == null) {
+                c = new long[2];
+                uids.put(uid, c);
+            }
+            c[TrafficSampler.RX] += rx;
+            c[TrafficSampler.TX] += tx;
+        });
+
+        // header, tagged, loopback and truncated lines are skipped
+        assertEquals(3, uids.size());
+        assertArrayEquals(new long[] { 100, 50 }, uids.get(0));
+        // both counter sets are summed
+        assertArrayEquals(new long[] { 2500, 400 }, uids.get(10050));
+        assertArrayEquals(new long[] { 4000, 800 }, uids.get(10060));
+    }
+
+    @Test
+    public void sampleGrowsBufferAndRereadsFile() throws IOException {
+        File f = mTmp.newFile("iface_stat_fmt");
+        StringBuilder content = new StringBuilder(
+                "ifname total_skb_rx_bytes total_skb_rx_packets total_skb_tx_bytes total_skb_tx_packets\n");
+        // way over initial buffer size
+        for (int i = 0; i < 200; i++) {
+            content.append("wlan").append(i).append(" 10 1 3 1\n");
+        }
+        write(f, content.toString());
+
+        TrafficSampler sampler = new TrafficSampler(f.getPath());
+        long[] rxTx = new long[2];
+        assertTrue(sampler.sample(rxTx));
+        assertEquals(2000, rxTx[TrafficSampler.RX]);
+        assertEquals(600, rxTx[TrafficSampler.TX]);
+
+        // file kept open is read from start again
+        write(f, "wlan0 5 1 7 1\n");
+        assertTrue(sampler.sample(rxTx));
+        assertEquals(5, rxTx[TrafficSampler.RX]);
+        assertEquals(7, rxTx[TrafficSampler.TX]);
+        sampler.close();
+    }
+
+    @Test
+    public void sampleFailsForMissingFile() {
+        TrafficSampler sampler = new TrafficSampler(new File(mTmp.getRoot(), "missing").getPath());
+
+        assertFalse(sampler.sample(new long[2]));
+    }
+
+    @Test
+    public void parseDoesNotAllocate() throws IOException {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMx = (com.sun.management.ThreadMXBean) mx;
+        Assume.assumeTrue(threadMx.isThreadAllocatedMemorySupported());
+        threadMx.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] buf = readFixture("iface_stat_fmt");
+        long[] rxTx = new long[2];
+        long[] ifaceRxTx = new long[TrafficSampler.IFACE_CLASS_COUNT * 2];
+        for (int i = 0; i < 20000; i++) {
+            TrafficSampler.parse(buf, buf.length, rxTx, ifaceRxTx);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadMx.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            TrafficSampler.parse(buf, buf.length, rxTx, ifaceRxTx);
+        }
+        final long allocated = threadMx.getThreadAllocatedBytes(threadId) - before;
+
+        // allow for a few bytes of measurement noise but nothing per parse
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void write(File f, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(content.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
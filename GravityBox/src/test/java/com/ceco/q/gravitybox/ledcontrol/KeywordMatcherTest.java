@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox.ledcontrol;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeywordMatcherTest {
+
+    // keyword lookup as done before the matcher was introduced
+    private static boolean referenceMatches(String keywordList, CharSequence text) {
+        if (text == null) return false;
+        boolean ignore = false;
+        for (String kw : keywordList.trim().split(",")) {
+            kw = kw.toLowerCase(Locale.getDefault());
+            ignore |= text.toString().toLowerCase(Locale.getDefault()).contains(kw);
+        }
+        return ignore;
+    }
+
+    private static void assertSameAsReference(String keywordList, CharSequence text) {
+        KeywordMatcher matcher = KeywordMatcher.compile(keywordList);
+        assertEquals("keywords \"" + keywordList + "\", text \"" + text + "\"",
+                referenceMatches(keywordList, text), matcher.matches(text));
+    }
+
+    @Test
+    public void emptyListCompilesToNull() {
+        assertNull(KeywordMatcher.compile(null));
+        assertNull(KeywordMatcher.compile(""));
+        assertNull(KeywordMatcher.compile("  "));
+    }
+
+    @Test
+    public void nullTextNeverMatches() {
+        assertFalse(KeywordMatcher.compile("abc").matches(null));
+        assertFalse(KeywordMatcher.compile(",abc").matches(null));
+    }
+
+    @Test
+    public void plainKeywords() {
+        assertSameAsReference("missed call,voicemail", "You have 1 missed call");
+        assertSameAsReference("missed call,voicemail", "New voicemail");
+        assertSameAsReference("missed call,voicemail", "New message");
+        assertSameAsReference("missed call,voicemail", "missed cal");
+        assertSameAsReference("abc", "");
+        assertSameAsReference("abc", "abc");
+    }
+
+    @Test
+    public void overlappingKeywords() {
+        // keyword ending inside another keyword reached via fail link
+        assertSameAsReference("abcd,bc", "xabcx");
+        assertSameAsReference("abcd,bcx", "abcx");
+        assertSameAsReference("she,he,hers,his", "ushers");
+        assertSameAsReference("she,hers", "ushe");
+        assertSameAsReference("aab,ab", "aaab");
+        assertSameAsReference("aaa", "aaaa");
+        assertSameAsReference("aaa", "aa");
+        assertSameAsReference("abab,bac", "ababac");
+        assertSameAsReference("abab,bac", "abaab");
+        // keyword being prefix of another one
+        assertSameAsReference("abc,ab", "xaby");
+        assertSameAsReference("ab,abc", "xabc");
+    }
+
+    @Test
+    public void emptyKeywords() {
+        // empty keyword is contained in any text
+        assertSameAsReference(",abc", "xyz");
+        assertSameAsReference("abc,,def", "xyz");
+        assertSameAsReference("abc,,def", "");
+        // trailing empty keywords are dropped by split
+        assertSameAsReference("abc,", "xyz");
+        assertSameAsReference("abc,,", "xyz");
+        // only outer white space is trimmed
+        assertSameAsReference(" abc , def ", "abc");
+        assertSameAsReference(" abc , def ", "abc def");
+        assertSameAsReference("abc, ", "xyz");
+        assertSameAsReference("abc, ", "x yz");
+    }
+
+    @Test
+    public void caseFolding() {
+        assertSameAsReference("Missed Call", "MISSED CALL from Bob");
+        assertSameAsReference("MISSED", "you missed it");
+        // accented Latin, Cyrillic and Greek letters
+        assertSameAsReference("\u00DCBER,\u00C9lan", "\u00FCber \u00E9lan");
+        assertSameAsReference("\u043F\u0440\u0438\u0432\u0435\u0442", "\u041F\u0420\u0418\u0412\u0415\u0422, \u043C\u0438\u0440");
+        assertSameAsReference("\u0391\u0392\u0393", "\u03B1\u03B2\u03B3\u03B4");
+        assertSameAsReference("stra\u00DFe", "STRA\u00DFE");
+        assertSameAsReference("abc", "ABD");
+    }
+
+    @Test
+    public void randomKeywordsAndTexts() {
+        Random rnd = new Random(7);
+        // small alphabet so that keywords overlap a lot
+        final String alphabet = "aAbBcC\u00E9\u00C9,";
+        for (int i = 0; i < 20000; i++) {
+            String keywordList = randomString(rnd, alphabet, 1 + rnd.nextInt(12));
+            if (keywordList.trim().isEmpty()) continue;
+            String text = randomString(rnd, alphabet.replace(",", " "), rnd.nextInt(16));
+            assertSameAsReference(keywordList, text);
+        }
+    }
+
+    @Test
+    public void matchesAnyCharSequence() {
+        KeywordMatcher matcher = KeywordMatcher.compile("world");
+        assertTrue(matcher.matches(new StringBuilder("Hello World")));
+        assertFalse(matcher.matches(new StringBuilder("Hello Word")));
+    }
+
+    private static String randomString(Random rnd, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2019 Peter Gregus for GravityBox Project (C3C076@xda)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.q.gravitybox.ledcontrol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class QuietHoursTest {
+
+    private static final long MINUTE = 60000;
+    private static final long WEEK = 7 * 24 * 60 * MINUTE;
+
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    private static QuietHours.Range range(int startTime, int endTime, String... days) {
+        QuietHours.Range r = QuietHours.Range.createDefault();
+        r.startTime = startTime;
+        r.endTime = endTime;
+        if (days.length > 0) {
+            r.days = new HashSet<>(Arrays.asList(days));
+        }
+        return r;
+    }
+
+    private static Set<QuietHours.Range> ranges(QuietHours.Range... ranges) {
+        return new LinkedHashSet<>(Arrays.asList(ranges));
+    }
+
+    // evaluation as done before ranges were compiled into weekly timeline
+    private static QuietHours.Range referenceActiveRange(Set<QuietHours.Range> ranges, long now) {
+        Calendar c = new GregorianCalendar();
+        c.setTimeInMillis(now);
+        int curMin = c.get(Calendar.HOUR_OF_DAY) * 60 + c.get(Calendar.MINUTE);
+        int curDay = c.get(Calendar.DAY_OF_WEEK);
+        int prevDay = (curDay == 1 ? 7 : curDay - 1);
+
+        for (QuietHours.Range range : ranges) {
+            boolean active;
+            if (range.endsNextDay()) {
+                active = (curMin >= range.startTime && range.days.contains(String.valueOf(curDay)) ||
+                    (curMin < range.endTime && range.days.contains(String.valueOf(prevDay))));
+            } else {
+                active = range.days.contains(String.valueOf(curDay));
+            }
+            if (active && isTimeOfDayInRange(curMin, range.startTime, range.endTime)) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isTimeOfDayInRange(int timeMin, int startMin, int endMin) {
+        if (startMin == endMin) {
+            return false;
+        } else if (startMin > endMin) {
+            return (timeMin >= startMin || timeMin < endMin);
+        } else {
+            return (timeMin >= startMin && timeMin < endMin);
+        }
+    }
+
+    private static long timeOf(String timeZone, int year, int month, int day, int hour, int minute) {
+        Calendar c = new GregorianCalendar(TimeZone.getTimeZone(timeZone));
+        c.clear();
+        c.set(year, month, day, hour, minute);
+        return c.getTimeInMillis();
+    }
+
+    // walks the week in given steps; calls go through active range cache
+    private static void assertSameAsReference(Set<QuietHours.Range> ranges, long from, long step) {
+        QuietHours qh = new QuietHours(ranges);
+        for (long t = from; t < from + WEEK; t += step) {
+            QuietHours.Range expected = referenceActiveRange(ranges, t);
+            QuietHours.Range actual = qh.getActiveRange(t);
+            if (expected != actual) {
+                Calendar c = new GregorianCalendar();
+                c.setTimeInMillis(t);
+                assertSame("at " + c.getTime(), expected, actual);
+            }
+        }
+    }
+
+    private static void assertSameAsReference(Set<QuietHours.Range> ranges, long from) {
+        // every minute of week
+        assertSameAsReference(ranges, from, MINUTE);
+        // not aligned to minute start
+        assertSameAsReference(ranges, from + 17000, 43000);
+        // fresh cache each time
+        for (long t = from; t < from + WEEK; t += 13 * MINUTE) {
+            assertSame(referenceActiveRange(ranges, t), new QuietHours(ranges).getActiveRange(t));
+        }
+    }
+
+    private static Set<QuietHours.Range>[] configurations() {
+        @SuppressWarnings("unchecked")
+        Set<QuietHours.Range>[] configs = new Set[] {
+            ranges(),
+            // default 23:00 - 06:00 every day
+            ranges(range(1380, 360)),
+            ranges(range(480, 1020, "2", "3", "4", "5", "6")),
+            // Saturday night continues into Sunday of following week
+            ranges(range(1320, 420, "6", "7")),
+            ranges(range(0, 1439, "1")),
+            // empty range
+            ranges(range(600, 600)),
+            // overlapping ranges, first one wins
+            ranges(range(1200, 480, "1", "3", "5", "7"),
+                    range(1260, 540, "2", "3", "4"),
+                    range(420, 600, "1", "2", "3", "4", "5", "6", "7"),
+                    range(0, 1, "4")),
+            ranges(range(60, 180, "1"), range(120, 150), range(1439, 0, "7")),
+        };
+        return configs;
+    }
+
+    @Test
+    public void timelineMatchesReferenceForEveryMinuteOfWeek() {
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        for (Set<QuietHours.Range> config : configurations()) {
+            // Sunday midnight
+            assertSameAsReference(config, timeOf("UTC", 2020, Calendar.JANUARY, 5, 0, 0));
+            assertSameAsReference(config, timeOf("UTC", 2020, Calendar.JANUARY, 8, 13, 37));
+        }
+    }
+
+    @Test
+    public void timelineMatchesReferenceAcrossDstTransitions() {
+        for (String tz : new String[] { "Europe/Prague", "America/New_York", "Australia/Lord_Howe" }) {
+            TimeZone.setDefault(TimeZone.getTimeZone(tz));
+            Set<QuietHours.Range>[] configs = configurations();
+            // ranges bordering on skipped or repeated hour
+            Set<QuietHours.Range>[] dstConfigs = Arrays.copyOf(configs, configs.length + 3);
+            dstConfigs[configs.length] = ranges(range(60, 150), range(150, 200));
+            dstConfigs[configs.length + 1] = ranges(range(90, 130, "1"), range(30, 170, "1"));
+            dstConfigs[configs.length + 2] = ranges(range(1410, 135));
+            for (Set<QuietHours.Range> config : dstConfigs) {
+                // weeks around spring and fall transitions
+                assertSameAsReference(config, timeOf(tz, 2020, Calendar.MARCH, 25, 0, 0));
+                assertSameAsReference(config, timeOf(tz, 2020, Calendar.OCTOBER, 21, 0, 0));
+                assertSameAsReference(config, timeOf(tz, 2020, Calendar.APRIL, 1, 0, 0));
+                assertSameAsReference(config, timeOf(tz, 2020, Calendar.NOVEMBER, 1, 0, 0));
+            }
+        }
+    }
+
+    @Test
+    public void timelineMatchesReferenceForRandomRanges() {
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Prague"));
+        Random rnd = new Random(42);
+        for (int i = 0; i < 30; i++) {
+            Set<QuietHours.Range> config = new LinkedHashSet<>();
+            for (int j = rnd.nextInt(4); j >= 0; j--) {
+                QuietHours.Range r = range(rnd.nextInt(1440), rnd.nextInt(1440));
+                r.days.removeIf(day -> rnd.nextInt(3) == 0);
+                config.add(r);
+            }
+            assertSameAsReference(config, timeOf("Europe/Prague", 2020, Calendar.MARCH, 26, 0, 0), MINUTE);
+        }
+    }
+
+    @Test
+    public void cachedRangeValidityIsCappedAtOneHour() {
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        QuietHours.Range r = range(1260, 1439);
+        QuietHours qh = new QuietHours(ranges(r));
+        long now = timeOf("UTC", 2020, Calendar.JANUARY, 8, 12, 0);
+        assertNull(qh.getActiveRange(now));
+
+        // time zone change is noticed latest one hour after last evaluation
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT+10:00"));
+        assertNull(qh.getActiveRange(now + 59 * MINUTE));
+        assertSame(r, qh.getActiveRange(now + 60 * MINUTE));
+    }
+}